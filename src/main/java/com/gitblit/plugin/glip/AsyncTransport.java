@@ -0,0 +1,253 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.glip;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.config.ConnectionConfig;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.ManagedNHttpClientConnectionFactory;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.conn.ManagedNHttpClientConnection;
+import org.apache.http.nio.conn.NHttpConnectionFactory;
+import org.apache.http.nio.entity.NByteArrayEntity;
+import org.apache.http.nio.reactor.IOSession;
+import org.apache.http.pool.PoolStats;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Posts payloads with a non-blocking http client.  A few I/O threads
+ * multiplex all of the connections, so a dispatch worker is free as soon as
+ * the request has been handed over.  The callback of a post acknowledges the
+ * outbox and schedules retries, so it is notified on a callback thread rather
+ * than on the I/O thread which read the response.
+ *
+ * @author James Moger
+ *
+ */
+class AsyncTransport implements GlipTransport {
+
+	final Logger log = LoggerFactory.getLogger(getClass());
+
+	final int maxConnections;
+
+	final int maxPerRoute;
+
+	final int ioThreads;
+
+	private final CountingFactory connectionFactory = new CountingFactory();
+
+	private PoolingNHttpClientConnectionManager connectionManager;
+
+	private CloseableHttpAsyncClient httpClient;
+
+	private ExecutorService callbackExecutor;
+
+	AsyncTransport(int maxConnections, int maxPerRoute, int ioThreads) {
+		this.maxConnections = maxConnections;
+		this.maxPerRoute = maxPerRoute;
+		this.ioThreads = ioThreads;
+	}
+
+	@Override
+	public void start() throws IOException {
+		callbackExecutor = Executors.newFixedThreadPool(ioThreads, new GlipThreadFactory("callback"));
+
+		IOReactorConfig ioConfig = IOReactorConfig.custom()
+				.setIoThreadCount(ioThreads)
+				.setConnectTimeout(Glip.CONNECT_TIMEOUT)
+				.setSoTimeout(Glip.SO_TIMEOUT)
+				.setTcpNoDelay(true)
+				.build();
+		DefaultConnectingIOReactor ioReactor = new DefaultConnectingIOReactor(ioConfig, new GlipThreadFactory("io"));
+
+		connectionManager = new PoolingNHttpClientConnectionManager(ioReactor, connectionFactory);
+		connectionManager.setMaxTotal(maxConnections);
+		connectionManager.setDefaultMaxPerRoute(Math.min(maxPerRoute, maxConnections));
+
+		httpClient = HttpAsyncClients.custom()
+				.setConnectionManager(connectionManager)
+				.setDefaultRequestConfig(BlockingTransport.getRequestConfig())
+				.setUserAgent(BlockingTransport.getUserAgent())
+				.setThreadFactory(new GlipThreadFactory("async"))
+				.build();
+		httpClient.start();
+	}
+
+	@Override
+	public void stop() {
+		try {
+			httpClient.close();
+		} catch (IOException e) {
+			log.error("Failed to close Glip http client", e);
+		}
+
+		// complete the posts which were cancelled by closing the client
+		callbackExecutor.shutdown();
+		try {
+			if (!callbackExecutor.awaitTermination(5, TimeUnit.SECONDS)) {
+				log.warn("Timed out waiting for Glip post callbacks");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	public void send(Payload payload, String url) throws IOException {
+		Future<HttpResponse> future = httpClient.execute(newPost(payload, url), null);
+		HttpResponse response;
+		try {
+			response = future.get();
+		} catch (InterruptedException e) {
+			future.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while posting to Glip");
+		} catch (ExecutionException e) {
+			throw asIOException(e.getCause());
+		}
+		BlockingTransport.check(payload, response);
+	}
+
+	@Override
+	public void post(final Payload payload, String url, final Callback callback) {
+		HttpPost post;
+		try {
+			post = newPost(payload, url);
+		} catch (IOException e) {
+			callback.failed(e);
+			return;
+		}
+
+		httpClient.execute(post, new FutureCallback<HttpResponse>() {
+			@Override
+			public void completed(final HttpResponse response) {
+				handOff(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							// the response has been read into memory
+							BlockingTransport.check(payload, response);
+						} catch (IOException e) {
+							callback.failed(e);
+							return;
+						}
+						callback.completed();
+					}
+				});
+			}
+
+			@Override
+			public void failed(final Exception e) {
+				handOff(new Runnable() {
+					@Override
+					public void run() {
+						callback.failed(asIOException(e));
+					}
+				});
+			}
+
+			@Override
+			public void cancelled() {
+				handOff(new Runnable() {
+					@Override
+					public void run() {
+						callback.failed(new IOException("Post to Glip was cancelled"));
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Hands the completion of a post to a callback thread.  If the transport
+	 * is stopping the completion runs on the calling thread.
+	 */
+	private void handOff(Runnable completion) {
+		try {
+			callbackExecutor.execute(completion);
+		} catch (RejectedExecutionException e) {
+			completion.run();
+		}
+	}
+
+	@Override
+	public void closeIdleConnections(long idleTimeout) {
+		connectionManager.closeExpiredConnections();
+		connectionManager.closeIdleConnections(idleTimeout, TimeUnit.SECONDS);
+	}
+
+	@Override
+	public PoolStats getPoolStats() {
+		return connectionManager.getTotalStats();
+	}
+
+	@Override
+	public long getConnectionCount() {
+		return connectionFactory.created.get();
+	}
+
+	/**
+	 * Creates a post of the payload.  The JSON is written to memory first
+	 * because the I/O threads must not block on a stream.
+	 */
+	private HttpPost newPost(Payload payload, String url) throws IOException {
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		PayloadEntity.write(payload, os);
+		HttpPost post = new HttpPost(url);
+		post.setEntity(new NByteArrayEntity(os.toByteArray(), ContentType.APPLICATION_JSON));
+		return post;
+	}
+
+	private static IOException asIOException(Throwable t) {
+		if (t instanceof IOException) {
+			return (IOException) t;
+		}
+		return new IOException(t);
+	}
+
+	/**
+	 * Counts the connections opened by the connection pool so that the reuse
+	 * of pooled connections can be reported.
+	 */
+	private static class CountingFactory implements NHttpConnectionFactory<ManagedNHttpClientConnection> {
+
+		final AtomicLong created = new AtomicLong();
+
+		@Override
+		public ManagedNHttpClientConnection create(IOSession session, ConnectionConfig config) {
+			created.incrementAndGet();
+			return ManagedNHttpClientConnectionFactory.INSTANCE.create(session, config);
+		}
+	}
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.glip;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.gitblit.Constants;
+
+/**
+ * Posts payloads with a blocking http client over a pool of keep-alive
+ * connections.  A post occupies the calling thread until Glip responds.
+ *
+ * @author James Moger
+ *
+ */
+class BlockingTransport implements GlipTransport {
+
+	final Logger log = LoggerFactory.getLogger(getClass());
+
+	final int maxConnections;
+
+	final int maxPerRoute;
+
+	private final CountingConnectionFactory connectionFactory = new CountingConnectionFactory();
+
+	private PoolingHttpClientConnectionManager connectionManager;
+
+	private CloseableHttpClient httpClient;
+
+	BlockingTransport(int maxConnections, int maxPerRoute) {
+		this.maxConnections = maxConnections;
+		this.maxPerRoute = maxPerRoute;
+	}
+
+	@Override
+	public void start() {
+		connectionManager = new PoolingHttpClientConnectionManager(connectionFactory);
+		connectionManager.setMaxTotal(maxConnections);
+		connectionManager.setDefaultMaxPerRoute(Math.min(maxPerRoute, maxConnections));
+
+		httpClient = HttpClients.custom()
+				.setConnectionManager(connectionManager)
+				.setDefaultRequestConfig(getRequestConfig())
+				.setUserAgent(getUserAgent())
+				.build();
+	}
+
+	@Override
+	public void stop() {
+		try {
+			httpClient.close();
+		} catch (IOException e) {
+			log.error("Failed to close Glip http client", e);
+		}
+	}
+
+	@Override
+	public void send(Payload payload, String url) throws IOException {
+		HttpPost post = new HttpPost(url);
+
+		// stream as JSON
+		post.setEntity(new PayloadEntity(payload));
+
+		CloseableHttpResponse response = httpClient.execute(post);
+		try {
+			check(payload, response);
+		} finally {
+			response.close();
+		}
+	}
+
+	@Override
+	public void post(Payload payload, String url, Callback callback) {
+		try {
+			send(payload, url);
+		} catch (IOException e) {
+			callback.failed(e);
+			return;
+		}
+		callback.completed();
+	}
+
+	@Override
+	public void closeIdleConnections(long idleTimeout) {
+		connectionManager.closeExpiredConnections();
+		connectionManager.closeIdleConnections(idleTimeout, TimeUnit.SECONDS);
+	}
+
+	@Override
+	public PoolStats getPoolStats() {
+		return connectionManager.getTotalStats();
+	}
+
+	@Override
+	public long getConnectionCount() {
+		return connectionFactory.getCreatedCount();
+	}
+
+	static RequestConfig getRequestConfig() {
+		return RequestConfig.custom()
+				.setConnectTimeout(Glip.CONNECT_TIMEOUT)
+				.setConnectionRequestTimeout(Glip.CONNECT_TIMEOUT)
+				.setSocketTimeout(Glip.SO_TIMEOUT)
+				.build();
+	}
+
+	static String getUserAgent() {
+		return Constants.NAME + "/" + Constants.getVersion();
+	}
+
+	/**
+	 * Consumes the response and throws a {@link GlipException} if Glip did
+	 * not accept the payload.
+	 *
+	 * @param payload
+	 * @param response
+	 * @throws IOException
+	 */
+	static void check(Payload payload, HttpResponse response) throws IOException {
+		int rc = response.getStatusLine().getStatusCode();
+
+		if (HttpStatus.SC_OK == rc) {
+			// This is the expected result code
+			// consume the response so the connection can be reused
+			EntityUtils.consume(response.getEntity());
+			return;
+		}
+
+		String result = null;
+		if (response.getEntity() != null) {
+			result = EntityUtils.toString(response.getEntity(), "UTF-8");
+		}
+
+		Logger log = LoggerFactory.getLogger(Glip.class);
+		log.error("Glip plugin sent:");
+		log.error(PayloadEntity.toJson(payload));
+		log.error("Glip returned:");
+		log.error(result);
+
+		throw new GlipException(rc, result, Glip.getRetryAfter(response.getFirstHeader("Retry-After")));
+	}
+}
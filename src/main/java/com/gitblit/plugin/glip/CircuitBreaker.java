@@ -0,0 +1,201 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.glip;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A circuit breaker for a Glip endpoint.
+ *
+ * After a number of consecutive failures the circuit opens and messages are
+ * held instead of each waiting on a connection timeout.  When the cooldown has
+ * elapsed a single held message is released to probe the endpoint.  If the
+ * probe succeeds the circuit closes and all held messages are released,
+ * otherwise the circuit opens again.
+ *
+ * @author James Moger
+ *
+ */
+class CircuitBreaker {
+
+	enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	final Logger log = LoggerFactory.getLogger(getClass());
+
+	final Glip glip;
+
+	final String endpoint;
+
+	final int threshold;
+
+	final long cooldown;
+
+	final int maxHeld;
+
+	final LinkedList<GlipTask> held = new LinkedList<GlipTask>();
+
+	private State state = State.CLOSED;
+
+	private int failures;
+
+	private long openUntil;
+
+	CircuitBreaker(Glip glip, String endpoint, int threshold, long cooldown, int maxHeld) {
+		this.glip = glip;
+		this.endpoint = endpoint;
+		this.threshold = threshold;
+		this.cooldown = cooldown;
+		this.maxHeld = maxHeld;
+	}
+
+	/**
+	 * Returns true if a post to the endpoint may be attempted now.  When the
+	 * circuit is half-open only one probe is allowed.
+	 *
+	 * @return true if the post may proceed
+	 */
+	synchronized boolean allowRequest() {
+		switch (state) {
+		case CLOSED:
+			return true;
+		case OPEN:
+			if (System.currentTimeMillis() >= openUntil) {
+				state = State.HALF_OPEN;
+				return true;
+			}
+			return false;
+		default:
+			// a probe is in flight
+			return false;
+		}
+	}
+
+	/**
+	 * Holds a task until the circuit closes or the task is needed as a probe.
+	 * If too many tasks are held, the new task is merged with a held task for
+	 * the same conversation or the oldest held task is discarded.
+	 *
+	 * @param task
+	 */
+	synchronized void hold(GlipTask task) {
+		if (held.size() >= maxHeld) {
+			Iterator<GlipTask> itr = held.iterator();
+			while (!task.isChained() && itr.hasNext()) {
+				GlipTask queued = itr.next();
+				if (!queued.isChained() && queued.isSameConversation(task)) {
+					itr.remove();
+					held.add(queued.merge(task));
+					return;
+				}
+			}
+			GlipTask oldest = held.removeFirst();
+			glip.discard(oldest);
+		}
+		held.add(task);
+	}
+
+	/**
+	 * Records a successful post, closing the circuit.
+	 */
+	void onSuccess() {
+		List<GlipTask> released;
+		synchronized (this) {
+			failures = 0;
+			if (state == State.CLOSED) {
+				return;
+			}
+			log.info("Glip circuit for {} is closed", endpoint);
+			state = State.CLOSED;
+			released = new ArrayList<GlipTask>(held);
+			held.clear();
+		}
+		for (GlipTask task : released) {
+			glip.resubmit(task);
+		}
+	}
+
+	/**
+	 * Records a failed post to the endpoint, opening the circuit if the
+	 * failure threshold has been reached or if the probe failed.
+	 */
+	void onFailure() {
+		synchronized (this) {
+			failures++;
+			if (state == State.CLOSED && failures < threshold) {
+				return;
+			}
+			if (state != State.OPEN) {
+				log.warn("Glip circuit for {} is open after {} failures, holding messages for {}ms",
+						endpoint, failures, cooldown);
+			}
+			state = State.OPEN;
+			openUntil = System.currentTimeMillis() + cooldown;
+		}
+		glip.schedule(new Runnable() {
+			@Override
+			public void run() {
+				probe();
+			}
+		}, cooldown);
+	}
+
+	/**
+	 * Records a post which neither reached nor failed at the endpoint, e.g.
+	 * because the request could not be built.  If it was the probe, the next
+	 * held task probes the endpoint instead.
+	 */
+	void release() {
+		synchronized (this) {
+			if (state != State.HALF_OPEN) {
+				return;
+			}
+			state = State.OPEN;
+			openUntil = System.currentTimeMillis();
+		}
+		probe();
+	}
+
+	/**
+	 * Releases the oldest held task as a probe once the cooldown has elapsed.
+	 */
+	private void probe() {
+		GlipTask task;
+		synchronized (this) {
+			if (state != State.OPEN || held.isEmpty()) {
+				// the next message will probe the endpoint
+				return;
+			}
+			task = held.removeFirst();
+		}
+		glip.resubmit(task);
+	}
+
+	synchronized State getState() {
+		return state;
+	}
+
+	synchronized int getHeldCount() {
+		return held.size();
+	}
+}
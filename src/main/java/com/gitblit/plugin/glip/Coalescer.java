@@ -0,0 +1,266 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.glip;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects ref change payloads for the same conversation and repository which
+ * arrive within a short window and merges them into a single summarized
+ * payload, e.g. "pushed to 14 branches, created 120 tags".
+ *
+ * @author James Moger
+ *
+ */
+class Coalescer {
+
+	/**
+	 * The number of individual messages included in the body of a merged
+	 * payload.
+	 */
+	static final int MAX_DETAILS = 5;
+
+	final Glip glip;
+
+	final ScheduledExecutorService scheduler;
+
+	final long window;
+
+	final Map<String, List<Payload>> batches = new HashMap<String, List<Payload>>();
+
+	final AtomicLong coalesced = new AtomicLong();
+
+	Coalescer(Glip glip, ScheduledExecutorService scheduler, long window) {
+		this.glip = glip;
+		this.scheduler = scheduler;
+		this.window = window;
+	}
+
+	/**
+	 * Offers a payload to the coalescing window.
+	 *
+	 * @param payload
+	 * @return true if the payload was accepted and will be delivered when the
+	 *         window closes, false if the payload should be delivered now
+	 */
+	boolean offer(Payload payload) {
+		if (!accepts(payload)) {
+			return false;
+		}
+		synchronized (batches) {
+			add(payload);
+		}
+		return true;
+	}
+
+	/**
+	 * Offers the payloads of one push to the coalescing window.  The accepted
+	 * payloads are added to the batches in order, together, so that they are
+	 * merged with the payloads of other pushes to the same repository which
+	 * arrive within the window.
+	 *
+	 * @param payloads
+	 * @return the payloads which were not accepted and should be delivered
+	 *         now, in order
+	 */
+	List<Payload> offerAll(List<Payload> payloads) {
+		List<Payload> rejected = new ArrayList<Payload>();
+		synchronized (batches) {
+			for (Payload payload : payloads) {
+				if (accepts(payload)) {
+					add(payload);
+				} else {
+					rejected.add(payload);
+				}
+			}
+		}
+		return rejected;
+	}
+
+	private boolean accepts(Payload payload) {
+		return window > 0 && payload.getRepository() != null && payload.getEventType() != null
+				&& payload.getEventType().isRefChange();
+	}
+
+	private void add(Payload payload) {
+		final String key = payload.getConversation() + "\u0000" + payload.getRepository();
+		List<Payload> batch = batches.get(key);
+		if (batch == null) {
+			batch = new ArrayList<Payload>();
+			batches.put(key, batch);
+			scheduler.schedule(new Runnable() {
+				@Override
+				public void run() {
+					flush(key);
+				}
+			}, window, TimeUnit.MILLISECONDS);
+		}
+		batch.add(payload);
+	}
+
+	/**
+	 * Returns the number of payloads which were merged into another payload.
+	 *
+	 * @return the coalesced count
+	 */
+	long getCoalescedCount() {
+		return coalesced.get();
+	}
+
+	/**
+	 * Immediately delivers all pending batches.
+	 */
+	void flushAll() {
+		List<String> keys;
+		synchronized (batches) {
+			keys = new ArrayList<String>(batches.keySet());
+		}
+		for (String key : keys) {
+			flush(key);
+		}
+	}
+
+	private void flush(String key) {
+		List<Payload> batch;
+		synchronized (batches) {
+			batch = batches.remove(key);
+		}
+		if (batch == null || batch.isEmpty()) {
+			return;
+		}
+		coalesced.addAndGet(batch.size() - 1);
+		// rendered by the dispatch worker, not on the scheduler thread
+		glip.dispatch(defer(batch));
+	}
+
+	/**
+	 * Returns a payload which merges the batch when it is rendered, so that
+	 * the payloads of the batch are rendered on the dispatch worker rather
+	 * than on the caller's thread.
+	 *
+	 * @param batch
+	 * @return a payload
+	 */
+	static Payload defer(List<Payload> batch) {
+		if (batch.size() == 1) {
+			return batch.get(0);
+		}
+		return new Batch(batch);
+	}
+
+	/**
+	 * Merges a batch of payloads into one summarized payload.
+	 *
+	 * @param batch
+	 * @return a payload
+	 */
+	static Payload merge(List<Payload> batch) {
+		Payload first = batch.get(0);
+		if (batch.size() == 1) {
+			return first;
+		}
+		first.render();
+
+		// count the events by action and type, in order of appearance
+		Map<String, Integer> counts = new LinkedHashMap<String, Integer>();
+		Map<String, Payload> samples = new HashMap<String, Payload>();
+		for (Payload payload : batch) {
+			String key = payload.getAction() + " " + payload.getEventType().name();
+			Integer count = counts.get(key);
+			counts.put(key, count == null ? 1 : count + 1);
+			if (!samples.containsKey(key)) {
+				samples.put(key, payload);
+			}
+		}
+
+		StringBuilder summary = new StringBuilder();
+		for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+			Payload sample = samples.get(entry.getKey());
+			if (summary.length() > 0) {
+				summary.append(", ");
+			}
+			summary.append(sample.getAction()).append(' ').append(sample.getEventType().count(entry.getValue()));
+		}
+
+		StringBuilder body = new StringBuilder();
+		for (int i = 0; i < Math.min(MAX_DETAILS, batch.size()); i++) {
+			Payload payload = batch.get(i);
+			payload.render();
+			if (payload.isFailed()) {
+				// logged by the payload
+				continue;
+			}
+			if (body.length() > 0) {
+				body.append("\n\n");
+			}
+			body.append(payload.getBody());
+		}
+		if (batch.size() > MAX_DETAILS) {
+			int diff = batch.size() - MAX_DETAILS;
+			body.append(String.format("\n\n...and %d more %s", diff, diff == 1 ? "update" : "updates"));
+		}
+
+		Payload merged = new Payload()
+			.icon(first.getIcon())
+			.activity(first.getActivity())
+			.title(summary.toString())
+			.body(body.toString())
+			.conversation(first.getConversation())
+			.repository(first.getRepository());
+		merged.setToken(first.getToken());
+		// the batch is in order of arrival
+		merged.setCreated(first.getCreated());
+		return merged;
+	}
+
+	/**
+	 * A batch of payloads which is merged when it is rendered.
+	 */
+	static class Batch extends DeferredPayload {
+
+		final transient List<Payload> batch;
+
+		Batch(List<Payload> batch) {
+			this.batch = batch;
+			Payload first = batch.get(0);
+			conversation(first.getConversation());
+			repository(first.getRepository());
+			setToken(first.getToken());
+			setCreated(first.getCreated());
+		}
+
+		@Override
+		List<Payload> getParts() {
+			return batch;
+		}
+
+		@Override
+		protected void renderPayload() {
+			Payload merged = Coalescer.merge(batch);
+			icon(merged.getIcon());
+			activity(merged.getActivity());
+			title(merged.getTitle());
+			body(merged.getBody());
+		}
+	}
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.glip;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.revwalk.RevCommit;
+
+import com.gitblit.Constants;
+import com.gitblit.utils.StringUtils;
+
+/**
+ * A bounded cache of the commit summaries rendered by the hooks, keyed by
+ * repository and commit id.
+ *
+ * The commits of a patchset are cached by the receive hook on the push
+ * thread and are listed again moments later by the ticket hook.  A range of
+ * commits is served from the cache by following first parents from the tip
+ * to the base, so a linear patchset whose commits are all cached is rendered
+ * without opening the repository.
+ *
+ * @author James Moger
+ *
+ */
+class CommitCache {
+
+	/**
+	 * The summary of a commit.
+	 */
+	static class Entry {
+
+		final String id;
+
+		final String parentId;
+
+		final int parentCount;
+
+		final String author;
+
+		final String shortMessage;
+
+		Entry(String id, String parentId, int parentCount, String author, String shortMessage) {
+			this.id = id;
+			this.parentId = parentId;
+			this.parentCount = parentCount;
+			this.author = author;
+			this.shortMessage = shortMessage;
+		}
+
+		/**
+		 * Creates the summary of a parsed commit.
+		 *
+		 * @param commit
+		 *            a commit with its body
+		 * @return the summary
+		 */
+		static Entry of(RevCommit commit) {
+			PersonIdent ident = commit.getAuthorIdent();
+			String author = ident.getName();
+			if (StringUtils.isEmpty(author) && ident.getEmailAddress() != null) {
+				author = ident.getEmailAddress().toLowerCase();
+			}
+			String parentId = commit.getParentCount() == 0 ? null : commit.getParent(0).getName();
+			String shortMessage = StringUtils.trimString(commit.getShortMessage(), Constants.LEN_SHORTLOG);
+			return new Entry(commit.getName(), parentId, commit.getParentCount(), author, shortMessage);
+		}
+
+		String getShortId(int length) {
+			return id.substring(0, Math.min(length, id.length()));
+		}
+	}
+
+	final int maxSize;
+
+	private final Map<String, Entry> entries;
+
+	/**
+	 * @param maxSize
+	 *            the maximum number of commits, 0 disables caching
+	 */
+	CommitCache(final int maxSize) {
+		this.maxSize = Math.max(0, maxSize);
+		this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CommitCache.Entry> eldest) {
+				return size() > CommitCache.this.maxSize;
+			}
+		};
+	}
+
+	/**
+	 * Caches the summary of a commit.
+	 *
+	 * @param repository
+	 * @param commit
+	 *            a commit with its body
+	 * @return the summary
+	 */
+	Entry put(String repository, RevCommit commit) {
+		Entry entry = Entry.of(commit);
+		if (maxSize > 0) {
+			synchronized (entries) {
+				entries.put(key(repository, entry.id), entry);
+			}
+		}
+		return entry;
+	}
+
+	/**
+	 * Returns the cached summary of a commit.
+	 *
+	 * @param repository
+	 * @param id
+	 * @return the summary or null if the commit is not cached
+	 */
+	Entry get(String repository, String id) {
+		synchronized (entries) {
+			return entries.get(key(repository, id));
+		}
+	}
+
+	/**
+	 * Returns the commits reachable from tip but not from base, oldest
+	 * first, if they are all cached and are a single line of history from
+	 * base to tip.
+	 *
+	 * @param repository
+	 * @param baseId
+	 * @param tipId
+	 * @return the commits or null if the range must be walked
+	 */
+	List<Entry> getRange(String repository, String baseId, String tipId) {
+		if (maxSize == 0 || StringUtils.isEmpty(baseId) || StringUtils.isEmpty(tipId)) {
+			return null;
+		}
+		List<Entry> list = new ArrayList<Entry>();
+		String id = tipId;
+		synchronized (entries) {
+			while (!baseId.equals(id)) {
+				Entry entry = entries.get(key(repository, id));
+				if (entry == null || entry.parentCount != 1) {
+					// not cached, a merge or a root
+					return null;
+				}
+				list.add(entry);
+				id = entry.parentId;
+			}
+		}
+		Collections.reverse(list);
+		return list;
+	}
+
+	private static String key(String repository, String id) {
+		return repository + "\u0000" + id;
+	}
+}
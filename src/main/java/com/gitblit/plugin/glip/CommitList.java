@@ -0,0 +1,118 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.glip;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevSort;
+import org.eclipse.jgit.revwalk.RevWalk;
+
+/**
+ * The first few commits of a range and the total number of commits in the
+ * range.  Ranges larger than {@link #MAX_COUNT} are not counted to the end,
+ * their total is a lower bound.
+ *
+ * @author James Moger
+ *
+ */
+class CommitList {
+
+	/**
+	 * The maximum number of commits counted in a range.
+	 */
+	static final int MAX_COUNT = 10000;
+
+	final List<RevCommit> commits;
+
+	final int total;
+
+	final boolean capped;
+
+	CommitList(List<RevCommit> commits, int total) {
+		this(commits, total, false);
+	}
+
+	CommitList(List<RevCommit> commits, int total, boolean capped) {
+		this.commits = commits;
+		this.total = total;
+		this.capped = capped;
+	}
+
+	/**
+	 * Returns the number of commits for display, e.g. "3" or "10000+" if the
+	 * range was too large to count.
+	 *
+	 * @param count
+	 * @return the display count
+	 */
+	String format(int count) {
+		return capped ? (count + "+") : String.valueOf(count);
+	}
+
+	/**
+	 * Walks the commits reachable from tip but not from base.
+	 *
+	 * The walk is not sorted so commits are generated incrementally, newest
+	 * first, instead of the whole range being buffered for a topological sort.
+	 * Commit bodies are only retained for the first commits, the remaining
+	 * commits are only counted.  The walk stops after {@link #MAX_COUNT}
+	 * commits so a push of a large, unrelated history does not walk the whole
+	 * range.
+	 *
+	 * @param walk
+	 * @param base
+	 * @param tip
+	 * @param limit
+	 *            the number of commits to return
+	 * @return the first commits of the range and the size of the range, or a
+	 *         lower bound of the size
+	 * @throws IOException
+	 */
+	static CommitList walk(RevWalk walk, ObjectId base, ObjectId tip, int limit) throws IOException {
+		List<RevCommit> list = new ArrayList<RevCommit>(limit);
+		int total = 0;
+		boolean capped = false;
+		walk.reset();
+		walk.sort(RevSort.NONE);
+		walk.setRetainBody(false);
+		try {
+			walk.markStart(walk.parseCommit(tip));
+			walk.markUninteresting(walk.parseCommit(base));
+			for (;;) {
+				RevCommit c = walk.next();
+				if (c == null) {
+					break;
+				}
+				if (total == MAX_COUNT) {
+					capped = true;
+					break;
+				}
+				if (list.size() < limit) {
+					walk.parseBody(c);
+					list.add(c);
+				}
+				total++;
+			}
+		} finally {
+			walk.setRetainBody(true);
+		}
+		return new CommitList(list, total, capped);
+	}
+}
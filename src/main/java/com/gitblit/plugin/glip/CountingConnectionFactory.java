@@ -0,0 +1,53 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.glip;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.config.ConnectionConfig;
+import org.apache.http.conn.HttpConnectionFactory;
+import org.apache.http.conn.ManagedHttpClientConnection;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.conn.ManagedHttpClientConnectionFactory;
+
+/**
+ * Counts the connections opened by the connection pool so that the reuse of
+ * pooled connections can be reported.
+ *
+ * @author James Moger
+ *
+ */
+class CountingConnectionFactory implements HttpConnectionFactory<HttpRoute, ManagedHttpClientConnection> {
+
+	private final HttpConnectionFactory<HttpRoute, ManagedHttpClientConnection> factory = ManagedHttpClientConnectionFactory.INSTANCE;
+
+	private final AtomicLong created = new AtomicLong();
+
+	@Override
+	public ManagedHttpClientConnection create(HttpRoute route, ConnectionConfig config) {
+		created.incrementAndGet();
+		return factory.create(route, config);
+	}
+
+	/**
+	 * Returns the number of connections created.
+	 *
+	 * @return the count
+	 */
+	long getCreatedCount() {
+		return created.get();
+	}
+}
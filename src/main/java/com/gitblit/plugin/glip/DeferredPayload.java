@@ -0,0 +1,77 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.glip;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A payload which captures the inputs of an event and renders the message on
+ * the dispatch worker instead of on the push or ticket thread.
+ *
+ * Subclasses must only capture immutable event inputs and must set the icon,
+ * activity, title and body in {@link #renderPayload()}.  The inputs are
+ * journaled in the outbox with Gson when the payload is queued, so subclasses
+ * must be named classes whose non-transient fields are the event inputs and
+ * a payload recovered after a restart must be able to render itself.
+ *
+ * @author James Moger
+ *
+ */
+public abstract class DeferredPayload extends Payload {
+
+	private static final Logger LOG = LoggerFactory.getLogger(DeferredPayload.class);
+
+	private transient volatile boolean rendered;
+
+	private transient volatile boolean failed;
+
+	@Override
+	public final void render() {
+		if (rendered) {
+			return;
+		}
+		synchronized (this) {
+			if (rendered) {
+				return;
+			}
+			try {
+				renderPayload();
+			} catch (Exception e) {
+				LOG.error("Failed to render Glip message", e);
+				failed = true;
+			}
+			rendered = true;
+		}
+	}
+
+	@Override
+	public boolean isRendered() {
+		return rendered;
+	}
+
+	@Override
+	public boolean isFailed() {
+		return failed;
+	}
+
+	/**
+	 * Renders the message.
+	 *
+	 * @throws Exception
+	 */
+	protected abstract void renderPayload() throws Exception;
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.glip;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.gitblit.utils.StringUtils;
+
+/**
+ * Summarizes the events of a conversation in digest mode and posts one
+ * digest per conversation every digest interval.
+ *
+ * Events are counted as they arrive by action, repository, author and ticket
+ * status; the payloads themselves are never rendered.  The number of posts to
+ * a conversation in digest mode is therefore constant however busy the
+ * conversation is.
+ *
+ * @author James Moger
+ *
+ */
+class Digest {
+
+	/**
+	 * The number of rows of each table of a digest.
+	 */
+	static final int MAX_ROWS = 10;
+
+	final Glip glip;
+
+	final ScheduledExecutorService scheduler;
+
+	final Map<String, Summary> summaries = new HashMap<String, Summary>();
+
+	final AtomicLong digested = new AtomicLong();
+
+	Digest(Glip glip, ScheduledExecutorService scheduler) {
+		this.glip = glip;
+		this.scheduler = scheduler;
+	}
+
+	/**
+	 * Offers a payload to the digest of its conversation.
+	 *
+	 * @param payload
+	 * @return true if the payload was counted in the digest, false if the
+	 *         payload should be delivered now
+	 */
+	boolean offer(Payload payload) {
+		if (payload.getEventType() == null) {
+			return false;
+		}
+		int interval = glip.getConfig().getDigestInterval(payload.getConversation());
+		if (interval <= 0) {
+			return false;
+		}
+
+		final String key = payload.getConversation() == null ? "" : payload.getConversation();
+		synchronized (summaries) {
+			Summary summary = summaries.get(key);
+			if (summary == null) {
+				summary = new Summary(payload.getConversation());
+				summaries.put(key, summary);
+				scheduler.schedule(new Runnable() {
+					@Override
+					public void run() {
+						flush(key);
+					}
+				}, interval, TimeUnit.SECONDS);
+			}
+			summary.add(payload);
+		}
+		digested.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Returns the number of events which were summarized in a digest.
+	 *
+	 * @return the digested count
+	 */
+	long getDigestedCount() {
+		return digested.get();
+	}
+
+	/**
+	 * Returns the number of events waiting for their digest.
+	 *
+	 * @return the pending count
+	 */
+	int getPendingCount() {
+		int count = 0;
+		synchronized (summaries) {
+			for (Summary summary : summaries.values()) {
+				count += summary.total;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Immediately delivers all pending digests.
+	 */
+	void flushAll() {
+		List<String> keys;
+		synchronized (summaries) {
+			keys = new ArrayList<String>(summaries.keySet());
+		}
+		for (String key : keys) {
+			flush(key);
+		}
+	}
+
+	private void flush(String key) {
+		Summary summary;
+		synchronized (summaries) {
+			summary = summaries.remove(key);
+		}
+		if (summary == null || summary.total == 0) {
+			return;
+		}
+		glip.dispatch(summary.render(glip));
+	}
+
+	/**
+	 * The running counts of the events of a conversation.  Guarded by the
+	 * summaries lock until the summary is flushed.
+	 */
+	static class Summary {
+
+		final String conversation;
+
+		final long created = System.nanoTime();
+
+		final Map<String, Integer> actions = new LinkedHashMap<String, Integer>();
+
+		final Map<String, EventType> actionTypes = new HashMap<String, EventType>();
+
+		final Map<String, Integer> repositories = new HashMap<String, Integer>();
+
+		final Map<String, Integer> authors = new HashMap<String, Integer>();
+
+		final Map<String, Integer> states = new HashMap<String, Integer>();
+
+		int total;
+
+		Summary(String conversation) {
+			this.conversation = conversation;
+		}
+
+		void add(Payload payload) {
+			String action = payload.getAction() + " " + payload.getEventType().name();
+			if (increment(actions, action) == 1) {
+				actionTypes.put(action, payload.getEventType());
+			}
+			if (payload.getRepository() != null) {
+				increment(repositories, StringUtils.stripDotGit(payload.getRepository()));
+			}
+			if (payload.getAuthor() != null) {
+				increment(authors, payload.getAuthor());
+			}
+			if (payload.getState() != null) {
+				increment(states, payload.getState());
+			}
+			total++;
+		}
+
+		/**
+		 * Renders the digest, e.g. "pushed to 14 branches, created 3 tickets"
+		 * followed by the busiest repositories and authors.
+		 *
+		 * @param glip
+		 * @return the digest payload
+		 */
+		Payload render(Glip glip) {
+			StringBuilder title = new StringBuilder();
+			for (Map.Entry<String, Integer> entry : actions.entrySet()) {
+				if (title.length() > 0) {
+					title.append(", ");
+				}
+				String action = entry.getKey().substring(0, entry.getKey().lastIndexOf(' '));
+				title.append(action).append(' ').append(actionTypes.get(entry.getKey()).count(entry.getValue()));
+			}
+
+			// display names are resolved once per digest
+			Map<String, Integer> names = new HashMap<String, Integer>();
+			UserCache users = glip.getUserCache();
+			for (Map.Entry<String, Integer> entry : authors.entrySet()) {
+				String name = users.get(entry.getKey()).getDisplayName();
+				Integer count = names.get(name);
+				names.put(name, count == null ? entry.getValue() : count + entry.getValue());
+			}
+
+			StringBuilder body = new StringBuilder();
+			table(body, "Repository", repositories);
+			table(body, "Author", names);
+			table(body, "Ticket status", states);
+
+			long seconds = Math.max(1, TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - created));
+			String period;
+			if (seconds < 120) {
+				period = String.format("%d %s", seconds, seconds == 1 ? "second" : "seconds");
+			} else {
+				period = String.format("%d minutes", TimeUnit.SECONDS.toMinutes(seconds));
+			}
+			String activity = String.format("%d %s in the last %s", total, total == 1 ? "update" : "updates", period);
+
+			Payload digest = new Payload()
+				.icon(glip.getConfig().getDefaultIcon())
+				.activity(activity)
+				.title(title.toString())
+				.body(body.toString().trim())
+				.conversation(conversation);
+			digest.setCreated(created);
+			return digest;
+		}
+
+		private static int increment(Map<String, Integer> counts, String key) {
+			Integer count = counts.get(key);
+			int value = count == null ? 1 : count + 1;
+			counts.put(key, value);
+			return value;
+		}
+
+		/**
+		 * Appends a table of the largest counts.
+		 */
+		private static void table(StringBuilder sb, String heading, Map<String, Integer> counts) {
+			if (counts.isEmpty()) {
+				return;
+			}
+			List<Map.Entry<String, Integer>> rows = new ArrayList<Map.Entry<String, Integer>>(counts.entrySet());
+			Collections.sort(rows, new Comparator<Map.Entry<String, Integer>>() {
+				@Override
+				public int compare(Map.Entry<String, Integer> a, Map.Entry<String, Integer> b) {
+					int c = b.getValue().compareTo(a.getValue());
+					return c != 0 ? c : a.getKey().compareTo(b.getKey());
+				}
+			});
+
+			sb.append(String.format("|**%s**|**Updates**|\n", heading));
+			for (int i = 0; i < Math.min(MAX_ROWS, rows.size()); i++) {
+				Map.Entry<String, Integer> row = rows.get(i);
+				sb.append('|').append(row.getKey()).append('|').append(row.getValue()).append("|\n");
+			}
+			if (rows.size() > MAX_ROWS) {
+				int others = 0;
+				for (int i = MAX_ROWS; i < rows.size(); i++) {
+					others += rows.get(i).getValue();
+				}
+				sb.append(String.format("|%d more|%d|\n", rows.size() - MAX_ROWS, others));
+			}
+			sb.append("\n");
+		}
+	}
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.glip;
+
+import com.gitblit.utils.StringUtils;
+
+/**
+ * Determines which threads deliver Glip messages.
+ *
+ * @author James Moger
+ *
+ */
+public enum DispatchMode {
+
+	/**
+	 * Deliver messages on a bounded pool of platform threads.
+	 */
+	POOL,
+
+	/**
+	 * Deliver messages on virtual threads.  Requires Java 21 or later, older
+	 * runtimes fall back to the pool.
+	 */
+	VIRTUAL,
+
+	/**
+	 * Deliver messages on virtual threads if the runtime supports them,
+	 * otherwise on the pool.
+	 */
+	AUTO;
+
+	/**
+	 * Parses a mode name from the settings.  Names are case-insensitive.
+	 *
+	 * @param value
+	 * @param defaultMode
+	 * @return the mode
+	 */
+	public static DispatchMode fromString(String value, DispatchMode defaultMode) {
+		if (StringUtils.isEmpty(value)) {
+			return defaultMode;
+		}
+		String name = value.trim().toUpperCase();
+		for (DispatchMode mode : values()) {
+			if (mode.name().equals(name)) {
+				return mode;
+			}
+		}
+		return defaultMode;
+	}
+}
@@ -0,0 +1,484 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.glip;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A bounded worker pool with a bounded queue for delivering Glip messages.
+ *
+ * Messages are queued in a lane per conversation.  A lane is delivered by at
+ * most one worker at a time, in order, and a message which is deferred by the
+ * rate limiter, the circuit breaker or a retry holds up the rest of its lane
+ * until it is resumed.  Lanes take turns on the workers, one message at a
+ * time, so a busy conversation does not starve a quiet one.
+ *
+ * When the queue is full the configured {@link OverflowPolicy} decides which
+ * message is kept.
+ *
+ * @author James Moger
+ *
+ */
+class DispatchPool extends ThreadPoolExecutor {
+
+	final Logger log = LoggerFactory.getLogger(getClass());
+
+	final int queueSize;
+
+	final OverflowPolicy policy;
+
+	final long blockTimeout;
+
+	final AtomicLong rejected = new AtomicLong();
+
+	final AtomicLong dropped = new AtomicLong();
+
+	final AtomicLong coalesced = new AtomicLong();
+
+	final AtomicLong deferred = new AtomicLong();
+
+	private final ReentrantLock lock = new ReentrantLock();
+
+	private final Condition notFull = lock.newCondition();
+
+	private final Map<String, Lane> lanes = new HashMap<String, Lane>();
+
+	private int queued;
+
+	DispatchPool(int poolSize, int queueSize, OverflowPolicy policy, long blockTimeout, ThreadFactory threadFactory) {
+		// the executor queue holds at most one entry per lane
+		super(poolSize, poolSize, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(),
+				threadFactory);
+		this.queueSize = queueSize;
+		this.policy = policy;
+		this.blockTimeout = blockTimeout;
+		allowCoreThreadTimeOut(true);
+		setRejectedExecutionHandler(new ShutdownHandler());
+	}
+
+	/**
+	 * Queues a task at the end of the lane of its conversation.
+	 */
+	@Override
+	public void execute(Runnable command) {
+		if (!(command instanceof GlipTask)) {
+			super.execute(command);
+			return;
+		}
+
+		GlipTask task = (GlipTask) command;
+		List<GlipTask> victims = new ArrayList<GlipTask>();
+		Lane ready = null;
+		lock.lock();
+		try {
+			if (isShutdown()) {
+				// the message remains in the outbox
+				defer(task);
+				return;
+			} else if (queued >= queueSize && !overflow(task, victims)) {
+				// the task was dropped or merged
+			} else {
+				Lane lane = getLane(task.getLane());
+				lane.tasks.addLast(task);
+				queued++;
+				if (lane.isIdle()) {
+					lane.running = true;
+					ready = lane;
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+
+		for (GlipTask victim : victims) {
+			drop(victim);
+		}
+		if (ready != null) {
+			super.execute(ready);
+		}
+	}
+
+	/**
+	 * Returns a deferred task to the head of its lane and resumes the lane.
+	 *
+	 * @param task
+	 */
+	void resume(GlipTask task) {
+		if (isShutdown()) {
+			// the message remains in the outbox
+			return;
+		}
+		wake(task, true);
+	}
+
+	/**
+	 * Resumes the lane of a deferred task which has been discarded.
+	 *
+	 * @param task
+	 */
+	void release(GlipTask task) {
+		wake(task, false);
+	}
+
+	private void wake(GlipTask task, boolean requeue) {
+		Lane ready = null;
+		lock.lock();
+		try {
+			Lane lane = getLane(task.getLane());
+			if (requeue) {
+				lane.tasks.addFirst(task);
+				queued++;
+			}
+			if (lane.running && !lane.parked) {
+				// woken before the worker parked the lane
+				lane.woken = true;
+			} else {
+				lane.parked = false;
+				if (lane.tasks.isEmpty()) {
+					lane.running = false;
+					lanes.remove(lane.key);
+				} else {
+					lane.running = true;
+					ready = lane;
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+		if (ready != null) {
+			super.execute(ready);
+		}
+	}
+
+	/**
+	 * Returns the number of messages waiting for a worker.
+	 *
+	 * @return the queue depth
+	 */
+	public int getQueueDepth() {
+		lock.lock();
+		try {
+			return queued;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of messages which may wait for a worker.
+	 *
+	 * @return the queue capacity
+	 */
+	public int getQueueCapacity() {
+		return queueSize;
+	}
+
+	/**
+	 * Returns the number of conversations with queued, running or deferred
+	 * messages.
+	 *
+	 * @return the lane count
+	 */
+	public int getLaneCount() {
+		lock.lock();
+		try {
+			return lanes.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of times a message was submitted to a full queue.
+	 *
+	 * @return the rejection count
+	 */
+	public long getRejectedCount() {
+		return rejected.get();
+	}
+
+	/**
+	 * Returns the number of messages discarded because the queue was full.
+	 *
+	 * @return the drop count
+	 */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	/**
+	 * Returns the number of queued messages which were left in the outbox
+	 * because the pool was shut down.
+	 *
+	 * @return the deferred count
+	 */
+	public long getDeferredCount() {
+		return deferred.get();
+	}
+
+	/**
+	 * Returns the number of messages merged into an already queued message.
+	 *
+	 * @return the coalesce count
+	 */
+	public long getCoalescedCount() {
+		return coalesced.get();
+	}
+
+	private Lane getLane(String key) {
+		Lane lane = lanes.get(key);
+		if (lane == null) {
+			lane = new Lane(key);
+			lanes.put(key, lane);
+		}
+		return lane;
+	}
+
+	/**
+	 * Applies the overflow policy to a task submitted to a full queue.  Must
+	 * be called with the lock held.
+	 *
+	 * @param task
+	 * @param victims
+	 *            the tasks to drop once the lock has been released
+	 * @return true if the task should be queued
+	 */
+	private boolean overflow(GlipTask task, List<GlipTask> victims) {
+		rejected.incrementAndGet();
+		switch (policy) {
+		case DROP_NEWEST:
+			victims.add(task);
+			return false;
+		case BLOCK:
+			long nanos = TimeUnit.MILLISECONDS.toNanos(blockTimeout);
+			try {
+				while (queued >= queueSize) {
+					if (nanos <= 0 || isShutdown()) {
+						victims.add(task);
+						return false;
+					}
+					nanos = notFull.awaitNanos(nanos);
+				}
+				return true;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				victims.add(task);
+				return false;
+			}
+		case COALESCE:
+			if (coalesce(task)) {
+				return false;
+			}
+			dropOldest(task, victims);
+			return true;
+		case DROP_OLDEST:
+		default:
+			dropOldest(task, victims);
+			return true;
+		}
+	}
+
+	/**
+	 * Merges the task into the last queued task of its lane.
+	 */
+	private boolean coalesce(GlipTask task) {
+		Lane lane = lanes.get(task.getLane());
+		if (lane == null || task.isChained()) {
+			return false;
+		}
+		GlipTask last = lane.tasks.peekLast();
+		if (last == null || last.isChained()) {
+			return false;
+		}
+		lane.tasks.removeLast();
+		lane.tasks.addLast(last.merge(task));
+		coalesced.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Discards the oldest queued task of the lane of the task or, if that
+	 * lane is empty, of the busiest lane.
+	 */
+	private void dropOldest(GlipTask task, List<GlipTask> victims) {
+		Lane victim = lanes.get(task.getLane());
+		if (victim == null || victim.tasks.isEmpty()) {
+			for (Lane lane : lanes.values()) {
+				if (victim == null || lane.tasks.size() > victim.tasks.size()) {
+					victim = lane;
+				}
+			}
+		}
+		if (victim != null && !victim.tasks.isEmpty()) {
+			victims.add(victim.tasks.removeFirst());
+			queued--;
+		}
+	}
+
+	/**
+	 * Leaves a task, and the tasks chained to it, in the outbox to be
+	 * delivered when the plugin is next started.
+	 */
+	private void defer(GlipTask task) {
+		for (GlipTask t = task; t != null; t = t.next) {
+			deferred.incrementAndGet();
+			if (t.journalId == 0) {
+				log.warn("Glip is stopping, message for conversation '{}' was not journaled and is lost", t.getConversation());
+			} else {
+				log.debug("Glip is stopping, message for conversation '{}' remains in the outbox", t.getConversation());
+			}
+		}
+	}
+
+	private void drop(GlipTask task) {
+		long count = dropped.incrementAndGet();
+		if (count == 1 || count % 100 == 0) {
+			log.warn("Glip dispatch queue is full ({} queued, {} workers), {} messages dropped so far. Consider raising {} or {}.",
+					getQueueDepth(), getPoolSize(), count, Plugin.SETTING_QUEUE_SIZE, Plugin.SETTING_POOL_SIZE);
+		}
+		log.debug("Dropped Glip message for conversation '{}'", task.getConversation());
+		task.drop();
+	}
+
+	/**
+	 * The queued messages of a conversation.  A lane is running from the time
+	 * it is handed to the executor until it is empty or parked.  A parked lane
+	 * waits for its deferred head task to be resumed or released.  All fields
+	 * are guarded by the pool lock.
+	 */
+	private class Lane implements Runnable {
+
+		final String key;
+
+		final Deque<GlipTask> tasks = new ArrayDeque<GlipTask>();
+
+		boolean running;
+
+		boolean parked;
+
+		boolean woken;
+
+		Lane(String key) {
+			this.key = key;
+		}
+
+		boolean isIdle() {
+			return !running && !parked;
+		}
+
+		@Override
+		public void run() {
+			for (;;) {
+				GlipTask task;
+				lock.lock();
+				try {
+					task = tasks.pollFirst();
+					if (task == null) {
+						running = false;
+						lanes.remove(key);
+						return;
+					}
+					queued--;
+					notFull.signal();
+				} finally {
+					lock.unlock();
+				}
+
+				boolean done = false;
+				try {
+					done = task.deliver();
+				} catch (RuntimeException e) {
+					// nothing would resume a lane parked on this task
+					log.error("Failed to deliver Glip message for conversation '" + task.getConversation() + "'", e);
+					done = true;
+				} finally {
+					boolean next;
+					lock.lock();
+					try {
+						if (!done && !woken) {
+							// wait for the deferred task
+							parked = true;
+						}
+						woken = false;
+						next = !parked && !tasks.isEmpty();
+						if (!next) {
+							running = false;
+							if (!parked) {
+								lanes.remove(key);
+							}
+						}
+					} finally {
+						lock.unlock();
+					}
+					if (!next) {
+						return;
+					}
+				}
+
+				if (!isShutdown()) {
+					// take turns with the other lanes
+					DispatchPool.super.execute(this);
+					return;
+				}
+				// the executor accepts no more runners, finish the lane here
+			}
+		}
+	}
+
+	private class ShutdownHandler implements RejectedExecutionHandler {
+
+		@Override
+		public void rejectedExecution(Runnable command, ThreadPoolExecutor executor) {
+			if (!(command instanceof Lane)) {
+				return;
+			}
+			Lane lane = (Lane) command;
+			List<GlipTask> remaining;
+			lock.lock();
+			try {
+				remaining = new ArrayList<GlipTask>(lane.tasks);
+				queued -= lane.tasks.size();
+				lane.tasks.clear();
+				lane.running = false;
+				lanes.remove(lane.key);
+				notFull.signalAll();
+			} finally {
+				lock.unlock();
+			}
+			for (GlipTask task : remaining) {
+				// the messages remain in the outbox for the next start
+				defer(task);
+			}
+		}
+	}
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.glip;
+
+/**
+ * The kind of Gitblit object a message is about.
+ *
+ * @author James Moger
+ *
+ */
+public enum EventType {
+
+	BRANCH("branch", "branches"),
+
+	TAG("tag", "tags"),
+
+	TICKET("ticket", "tickets"),
+
+	REVIEW("review", "reviews"),
+
+	PATCHSET("patchset", "patchsets");
+
+	private final String singular;
+
+	private final String plural;
+
+	EventType(String singular, String plural) {
+		this.singular = singular;
+		this.plural = plural;
+	}
+
+	/**
+	 * Returns true if the event is a change to a branch or tag.
+	 *
+	 * @return true for ref changes
+	 */
+	public boolean isRefChange() {
+		return this == BRANCH || this == TAG;
+	}
+
+	/**
+	 * Returns the noun for this event type appropriate for the count.
+	 *
+	 * @param count
+	 * @return "1 branch", "14 branches", etc
+	 */
+	public String count(int count) {
+		return String.format("%d %s", count, count == 1 ? singular : plural);
+	}
+}
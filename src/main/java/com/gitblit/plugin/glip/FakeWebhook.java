@@ -0,0 +1,389 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.glip;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A local stand-in for the Glip webhook service which records the posted
+ * payloads and can inject latency, rate limiting, server errors and dropped
+ * connections.
+ *
+ * Point the plugin at it with glip.hooksUrl to load test the dispatch path
+ * without reaching Glip.
+ *
+ * @author James Moger
+ *
+ */
+class FakeWebhook implements HttpHandler {
+
+	private static FakeWebhook instance;
+
+	final Logger log = LoggerFactory.getLogger(getClass());
+
+	final int port;
+
+	final boolean loopback;
+
+	final int history;
+
+	private final Random random = new Random();
+
+	private volatile long latency;
+
+	private volatile long jitter;
+
+	private volatile double rateLimitRate;
+
+	private volatile int retryAfter;
+
+	private volatile double errorRate;
+
+	private volatile double resetRate;
+
+	private HttpServer server;
+
+	private ExecutorService executor;
+
+	private final LinkedList<Post> recent = new LinkedList<Post>();
+
+	private final Object lock = new Object();
+
+	private long received;
+
+	private final AtomicLong accepted = new AtomicLong();
+
+	private final AtomicLong rateLimited = new AtomicLong();
+
+	private final AtomicLong errors = new AtomicLong();
+
+	private final AtomicLong resets = new AtomicLong();
+
+	private volatile long started;
+
+	/**
+	 * A recorded post.
+	 */
+	static class Post {
+		final Date date;
+		final String token;
+		final int status;
+		final String json;
+
+		Post(Date date, String token, int status, String json) {
+			this.date = date;
+			this.token = token;
+			this.status = status;
+			this.json = json;
+		}
+	}
+
+	/**
+	 * Creates a fake webhook.
+	 *
+	 * @param port
+	 *            the port to listen on or 0 for any free port
+	 * @param loopback
+	 *            true to only accept connections from this machine
+	 * @param history
+	 *            the number of posts to record
+	 */
+	FakeWebhook(int port, boolean loopback, int history) {
+		this.port = port;
+		this.loopback = loopback;
+		this.history = Math.max(0, history);
+	}
+
+	/**
+	 * Returns the running shared fake webhook.
+	 *
+	 * @return the fake webhook or null
+	 */
+	static synchronized FakeWebhook getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Starts the shared fake webhook, stopping the previous one.
+	 *
+	 * @param webhook
+	 * @throws IOException
+	 */
+	static synchronized void startInstance(FakeWebhook webhook) throws IOException {
+		stopInstance();
+		webhook.start();
+		instance = webhook;
+	}
+
+	/**
+	 * Stops the shared fake webhook.
+	 *
+	 * @return true if a fake webhook was running
+	 */
+	static synchronized boolean stopInstance() {
+		if (instance == null) {
+			return false;
+		}
+		instance.stop();
+		instance = null;
+		return true;
+	}
+
+	/**
+	 * Sets the delay of every response.
+	 *
+	 * @param latency
+	 *            milliseconds
+	 * @param jitter
+	 *            additional random milliseconds
+	 * @return this fake webhook
+	 */
+	FakeWebhook latency(long latency, long jitter) {
+		this.latency = Math.max(0, latency);
+		this.jitter = Math.max(0, jitter);
+		return this;
+	}
+
+	/**
+	 * Sets the fraction of posts answered with 429 Too Many Requests.
+	 *
+	 * @param rate
+	 * @param retryAfter
+	 *            the Retry-After seconds, 0 to omit the header
+	 * @return this fake webhook
+	 */
+	FakeWebhook rateLimit(double rate, int retryAfter) {
+		this.rateLimitRate = rate;
+		this.retryAfter = retryAfter;
+		return this;
+	}
+
+	/**
+	 * Sets the fraction of posts answered with 503 Service Unavailable.
+	 *
+	 * @param rate
+	 * @return this fake webhook
+	 */
+	FakeWebhook errors(double rate) {
+		this.errorRate = rate;
+		return this;
+	}
+
+	/**
+	 * Sets the fraction of posts for which the connection is closed without
+	 * a response.
+	 *
+	 * @param rate
+	 * @return this fake webhook
+	 */
+	FakeWebhook resets(double rate) {
+		this.resetRate = rate;
+		return this;
+	}
+
+	void start() throws IOException {
+		// the JDK server delays small responses with Nagle's algorithm
+		// unless told otherwise, which would dominate the measurements
+		if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+			System.setProperty("sun.net.httpserver.nodelay", "true");
+		}
+		InetSocketAddress address = loopback ? new InetSocketAddress(InetAddress.getLoopbackAddress(), port)
+				: new InetSocketAddress(port);
+		server = HttpServer.create(address, 0);
+		server.createContext("/", this);
+		// responses may be delayed, so every exchange gets a thread
+		executor = Executors.newCachedThreadPool(new GlipThreadFactory("webhook"));
+		server.setExecutor(executor);
+		server.start();
+		started = System.currentTimeMillis();
+		log.info("Fake Glip webhook listening on {}", getUrl());
+	}
+
+	void stop() {
+		if (server != null) {
+			server.stop(0);
+			executor.shutdownNow();
+			server = null;
+			log.info("Fake Glip webhook stopped");
+		}
+	}
+
+	/**
+	 * Returns the url to use for glip.hooksUrl.
+	 *
+	 * @return the base url of the webhooks
+	 */
+	String getUrl() {
+		String host = loopback ? "127.0.0.1" : "localhost";
+		return "http://" + host + ":" + server.getAddress().getPort() + "/webhook/";
+	}
+
+	long getStarted() {
+		return started;
+	}
+
+	long getReceived() {
+		synchronized (lock) {
+			return received;
+		}
+	}
+
+	long getAccepted() {
+		return accepted.get();
+	}
+
+	long getRateLimited() {
+		return rateLimited.get();
+	}
+
+	long getErrors() {
+		return errors.get();
+	}
+
+	long getResets() {
+		return resets.get();
+	}
+
+	/**
+	 * Returns the most recent posts, oldest first.
+	 *
+	 * @return the recorded posts
+	 */
+	List<Post> getRecent() {
+		synchronized (lock) {
+			return new ArrayList<Post>(recent);
+		}
+	}
+
+	/**
+	 * Waits until the total number of received posts reaches the count.
+	 *
+	 * @param count
+	 * @param timeout
+	 *            milliseconds
+	 * @return true if the count was reached
+	 * @throws InterruptedException
+	 */
+	boolean await(long count, long timeout) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeout;
+		synchronized (lock) {
+			while (received < count) {
+				long wait = deadline - System.currentTimeMillis();
+				if (wait <= 0) {
+					return false;
+				}
+				lock.wait(wait);
+			}
+			return true;
+		}
+	}
+
+	@Override
+	public void handle(HttpExchange exchange) throws IOException {
+		try {
+			String json = read(exchange.getRequestBody());
+			String path = exchange.getRequestURI().getPath();
+			String token = path.substring(path.lastIndexOf('/') + 1);
+
+			long delay = latency;
+			if (jitter > 0) {
+				delay += (long) (random.nextDouble() * jitter);
+			}
+			if (delay > 0) {
+				try {
+					Thread.sleep(delay);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+
+			double roll = random.nextDouble();
+			int status;
+			if (roll < resetRate) {
+				// drop the connection without a response
+				status = 0;
+				resets.incrementAndGet();
+			} else if (roll < resetRate + rateLimitRate) {
+				status = 429;
+				rateLimited.incrementAndGet();
+				if (retryAfter > 0) {
+					exchange.getResponseHeaders().set("Retry-After", String.valueOf(retryAfter));
+				}
+				respond(exchange, status, "{\"status\":\"error\",\"message\":\"Too many requests\"}");
+			} else if (roll < resetRate + rateLimitRate + errorRate) {
+				status = 503;
+				errors.incrementAndGet();
+				respond(exchange, status, "{\"status\":\"error\",\"message\":\"Service unavailable\"}");
+			} else {
+				status = 200;
+				accepted.incrementAndGet();
+				respond(exchange, status, "{\"status\":\"OK\"}");
+			}
+			record(new Post(new Date(), token, status, json));
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private void record(Post post) {
+		synchronized (lock) {
+			received++;
+			if (history > 0) {
+				recent.add(post);
+				if (recent.size() > history) {
+					recent.removeFirst();
+				}
+			}
+			lock.notifyAll();
+		}
+	}
+
+	private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+		byte [] bytes = body.getBytes("UTF-8");
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		exchange.sendResponseHeaders(status, bytes.length);
+		exchange.getResponseBody().write(bytes);
+	}
+
+	private static String read(InputStream is) throws IOException {
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		byte [] buffer = new byte[4096];
+		int len;
+		while ((len = is.read(buffer)) != -1) {
+			os.write(buffer, 0, len);
+		}
+		return os.toString("UTF-8");
+	}
+}
@@ -15,34 +15,38 @@
  */
 package com.gitblit.plugin.glip;
 
-import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.Serializable;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
-import org.apache.http.HttpResponse;
-import org.apache.http.HttpStatus;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.client.params.AllClientPNames;
-import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.params.CoreProtocolPNames;
+import org.apache.http.Header;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.pool.PoolStats;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.gitblit.Constants;
+import com.gitblit.IStoredSettings;
 import com.gitblit.manager.IManager;
 import com.gitblit.manager.IRuntimeManager;
 import com.gitblit.models.RepositoryModel;
-import com.gitblit.utils.JsonUtils.GmtDateTypeAdapter;
 import com.gitblit.utils.StringUtils;
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
 
 /**
  * Configures the final payload and sends a Glip message.
@@ -54,11 +58,59 @@ public class Glip implements IManager {
 
 	private static Glip instance;
 
+	static final int CONNECT_TIMEOUT = 5000;
+
+	static final int SO_TIMEOUT = 5000;
+
 	final Logger log = LoggerFactory.getLogger(getClass());
 
 	final IRuntimeManager runtimeManager;
 
-	final ExecutorService taskPool;
+	final IStoredSettings settings;
+
+	private volatile GlipConfig config;
+
+	final Set<String> warnedConversations = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	private volatile DispatchPool taskPool;
+
+	private volatile DispatchMode dispatchMode = DispatchMode.POOL;
+
+	private volatile ScheduledExecutorService scheduler;
+
+	private volatile GlipTransport transport;
+
+	private volatile Coalescer coalescer;
+
+	private volatile Digest digest;
+
+	private volatile Outbox outbox;
+
+	private volatile boolean syncOnAppend;
+
+	private volatile RetryPolicy retryPolicy;
+
+	final GlipMetrics metrics = new GlipMetrics();
+
+	final AtomicLong skipped = new AtomicLong();
+
+	final UserCache userCache;
+
+	final CommitCache commitCache;
+
+	final ConcurrentMap<String, TokenBucket> rateLimiters = new ConcurrentHashMap<String, TokenBucket>();
+
+	final ConcurrentMap<String, CircuitBreaker> circuitBreakers = new ConcurrentHashMap<String, CircuitBreaker>();
+
+	private volatile double rateLimit;
+
+	private volatile int rateLimitBurst;
+
+	private volatile int breakerThreshold;
+
+	private volatile long breakerCooldown;
+
+	private volatile int maxHeld;
 
 	public static void init(IRuntimeManager manager) {
 		if (instance == null) {
@@ -71,18 +123,264 @@ public class Glip implements IManager {
 	}
 
 	Glip(IRuntimeManager runtimeManager) {
+		this(runtimeManager, runtimeManager.getSettings());
+	}
+
+	/**
+	 * Creates a Glip manager which reads its settings from the specified
+	 * settings rather than from the Gitblit settings.
+	 *
+	 * @param runtimeManager
+	 * @param settings
+	 */
+	Glip(IRuntimeManager runtimeManager, IStoredSettings settings) {
 		this.runtimeManager = runtimeManager;
-		this.taskPool = Executors.newCachedThreadPool();
+		this.settings = settings;
+		this.config = GlipConfig.load(settings);
+		this.userCache = new UserCache(settings.getInteger(Plugin.SETTING_USER_CACHE_SIZE, 1000),
+				settings.getInteger(Plugin.SETTING_USER_CACHE_TTL, 300));
+		this.commitCache = new CommitCache(settings.getInteger(Plugin.SETTING_COMMIT_CACHE_SIZE, 1000));
+	}
+
+	/**
+	 * Returns the current settings snapshot.
+	 *
+	 * @return the config
+	 */
+	public GlipConfig getConfig() {
+		return config;
+	}
+
+	/**
+	 * Returns the delivery metrics.
+	 *
+	 * @return the metrics
+	 */
+	public GlipMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Returns the cache of user display names and gravatar urls.
+	 *
+	 * @return the user cache
+	 */
+	UserCache getUserCache() {
+		return userCache;
+	}
+
+	/**
+	 * Returns the cache of the commits listed in messages.
+	 *
+	 * @return the commit cache
+	 */
+	CommitCache getCommitCache() {
+		return commitCache;
+	}
+
+	/**
+	 * Rebuilds the settings snapshot if the Gitblit settings have changed.
+	 *
+	 * @return true if the snapshot was replaced
+	 */
+	public boolean reloadConfig() {
+		GlipConfig current = GlipConfig.load(settings);
+		if (current.isSame(config)) {
+			return false;
+		}
+		config = current;
+		warnedConversations.clear();
+		// a settings change also refreshes the cached users
+		userCache.clear();
+		log.info("Reloaded Glip settings");
+		return true;
 	}
 
 	@Override
-	public Glip start() {
+	public synchronized Glip start() {
+		if (transport != null) {
+			// already started
+			return this;
+		}
+
+		int maxConnections = Math.max(1, settings.getInteger(Plugin.SETTING_MAX_CONNECTIONS, 20));
+		int maxPerRoute = Math.max(1, settings.getInteger(Plugin.SETTING_MAX_CONNECTIONS_PER_ROUTE, 10));
+		final int idleTimeout = settings.getInteger(Plugin.SETTING_CONNECTION_IDLE_TIMEOUT, 30);
+
+		GlipTransport http = null;
+		String transportName = "blocking";
+		if ("async".equalsIgnoreCase(settings.getString(Plugin.SETTING_TRANSPORT, transportName))) {
+			int ioThreads = Math.max(1, settings.getInteger(Plugin.SETTING_IO_THREADS, 2));
+			AsyncTransport async = new AsyncTransport(maxConnections, maxPerRoute, ioThreads);
+			try {
+				async.start();
+				http = async;
+				transportName = "async, " + ioThreads + " I/O threads";
+			} catch (IOException e) {
+				log.error("Failed to start the async Glip transport, using the blocking transport", e);
+			}
+		}
+		if (http == null) {
+			BlockingTransport blocking = new BlockingTransport(maxConnections, maxPerRoute);
+			blocking.start();
+			http = blocking;
+		}
+		transport = http;
+
+		scheduler = Executors.newSingleThreadScheduledExecutor(new GlipThreadFactory("scheduler"));
+		if (idleTimeout > 0) {
+			// periodically evict stale and idle keep-alive connections from the pool
+			final GlipTransport pool = http;
+			scheduler.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					pool.closeIdleConnections(idleTimeout);
+				}
+			}, idleTimeout, idleTimeout, TimeUnit.SECONDS);
+		}
+
+		log.info("Glip connection pool: {} connections, {} per route, {}s idle timeout, {} transport",
+				maxConnections, maxPerRoute, idleTimeout, transportName);
+
+		reloadConfig();
+		int refreshInterval = settings.getInteger(Plugin.SETTING_CONFIG_REFRESH_INTERVAL, 10);
+		if (refreshInterval > 0) {
+			// pick up changes to gitblit.properties
+			scheduler.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						reloadConfig();
+					} catch (Exception e) {
+						log.error("Failed to reload Glip settings", e);
+					}
+				}
+			}, refreshInterval, refreshInterval, TimeUnit.SECONDS);
+		}
+
+		List<Outbox.Entry> recovered = Collections.emptyList();
+		if (settings.getBoolean(Plugin.SETTING_USE_OUTBOX, true)) {
+			File folder = runtimeManager.getFileOrFolder(Plugin.SETTING_OUTBOX_FOLDER, "${baseFolder}/glip/outbox");
+			long segmentSize = settings.getFilesize(Plugin.SETTING_OUTBOX_SEGMENT_SIZE, 4 * 1024 * 1024L);
+			final int syncInterval = Math.max(0, settings.getInteger(Plugin.SETTING_OUTBOX_SYNC_INTERVAL, 200));
+			final Outbox journal = new Outbox(folder, segmentSize, GlipConfig.GSON);
+			try {
+				recovered = journal.open();
+				outbox = journal;
+				syncOnAppend = syncInterval == 0;
+				if (syncInterval > 0) {
+					// fsync journal writes in batches
+					scheduler.scheduleWithFixedDelay(new Runnable() {
+						@Override
+						public void run() {
+							journal.sync();
+						}
+					}, syncInterval, syncInterval, TimeUnit.MILLISECONDS);
+				}
+				log.info("Glip outbox: {}, {}ms sync interval", folder, syncInterval);
+			} catch (IOException e) {
+				log.error("Failed to open the Glip outbox, messages will not survive a restart", e);
+			}
+		}
+
+		int poolSize = Math.max(1, settings.getInteger(Plugin.SETTING_POOL_SIZE, 4));
+		int queueSize = Math.max(1, settings.getInteger(Plugin.SETTING_QUEUE_SIZE, 1000));
+		OverflowPolicy policy = OverflowPolicy.fromString(settings.getString(Plugin.SETTING_OVERFLOW_POLICY, null),
+				OverflowPolicy.DROP_OLDEST);
+		long blockTimeout = Math.max(0, settings.getInteger(Plugin.SETTING_OVERFLOW_BLOCK_TIMEOUT, 1000));
+		DispatchMode mode = DispatchMode.fromString(settings.getString(Plugin.SETTING_DISPATCH_MODE, null),
+				DispatchMode.POOL);
+		ThreadFactory threadFactory = null;
+		if (mode != DispatchMode.POOL) {
+			threadFactory = GlipThreadFactory.newVirtualThreadFactory("dispatch");
+			if (threadFactory == null && mode == DispatchMode.VIRTUAL) {
+				log.warn("Virtual threads are not supported by Java {}, using the Glip dispatch pool",
+						System.getProperty("java.version"));
+			}
+		}
+		if (threadFactory == null) {
+			dispatchMode = DispatchMode.POOL;
+			threadFactory = new GlipThreadFactory("dispatch");
+		} else {
+			// a blocked virtual worker does not hold a platform thread, let the
+			// connection pool limit the number of concurrent posts
+			dispatchMode = DispatchMode.VIRTUAL;
+			poolSize = Math.max(poolSize, maxConnections);
+		}
+		taskPool = new DispatchPool(poolSize, queueSize, policy, blockTimeout, threadFactory);
+
+		log.info("Glip dispatch {}: {} workers, {} queued messages, {} overflow policy",
+				dispatchMode.name().toLowerCase(), poolSize, queueSize, policy);
+
+		int maxAttempts = Math.max(1, settings.getInteger(Plugin.SETTING_MAX_ATTEMPTS, 5));
+		long baseDelay = Math.max(1, settings.getInteger(Plugin.SETTING_RETRY_BASE_DELAY, 1000));
+		long maxDelay = Math.max(baseDelay, settings.getInteger(Plugin.SETTING_RETRY_MAX_DELAY, 300000));
+		retryPolicy = new RetryPolicy(maxAttempts, baseDelay, maxDelay);
+
+		rateLimit = Math.max(0, settings.getInteger(Plugin.SETTING_RATE_LIMIT, 5));
+		rateLimitBurst = Math.max(1, settings.getInteger(Plugin.SETTING_RATE_LIMIT_BURST, 10));
+		breakerThreshold = Math.max(1, settings.getInteger(Plugin.SETTING_CIRCUIT_BREAKER_THRESHOLD, 5));
+		breakerCooldown = Math.max(1000, settings.getInteger(Plugin.SETTING_CIRCUIT_BREAKER_COOLDOWN, 30000));
+		maxHeld = queueSize;
+		rateLimiters.clear();
+		circuitBreakers.clear();
+
+		long window = Math.max(0, settings.getInteger(Plugin.SETTING_COALESCE_WINDOW, 1000));
+		coalescer = new Coalescer(this, scheduler, window);
+		digest = new Digest(this, scheduler);
+
+		// resume delivery of messages which were queued when we last stopped
+		for (Outbox.Entry entry : recovered) {
+			taskPool.execute(new GlipTask(this, entry.payload, entry.id));
+		}
 		return this;
 	}
 
 	@Override
-	public Glip stop() {
-		this.taskPool.shutdown();
+	public synchronized Glip stop() {
+		if (digest != null) {
+			// post the pending digests early rather than lose them
+			digest.flushAll();
+			digest = null;
+		}
+
+		if (coalescer != null) {
+			coalescer.flushAll();
+			coalescer = null;
+		}
+
+		if (taskPool != null) {
+			taskPool.shutdown();
+			try {
+				// allow queued messages a chance to be delivered
+				taskPool.awaitTermination(10, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			long deferred = taskPool.getDeferredCount();
+			if (deferred > 0) {
+				log.info("{} queued Glip messages remain in the outbox for the next start", deferred);
+			}
+			taskPool = null;
+		}
+
+		if (transport != null) {
+			// fails posts which are still in flight, they are retried on restart
+			transport.stop();
+			transport = null;
+		}
+
+		if (outbox != null) {
+			// undelivered messages remain in the outbox for the next start
+			outbox.close();
+			outbox = null;
+		}
+
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+			scheduler = null;
+		}
+
 		return this;
 	}
 
@@ -93,11 +391,40 @@ public class Glip implements IManager {
 	 * @return true if the repository can be posted to Glip
 	 */
 	public boolean shallPost(RepositoryModel repository) {
-		boolean postPersonalRepos = runtimeManager.getSettings().getBoolean(Plugin.SETTING_POST_PERSONAL_REPOS, false);
-		if (repository.isPersonalRepository() && !postPersonalRepos) {
-			return false;
+		return route(repository).isRoutable();
+	}
+
+	/**
+	 * Resolves the conversation and token for the events of the repository.
+	 * The route is unroutable if the repository is filtered or there is no
+	 * token for the conversation, in which case the events should be skipped
+	 * before any message is prepared.
+	 *
+	 * @param repository
+	 * @return the route
+	 */
+	public Route route(RepositoryModel repository) {
+		GlipConfig cfg = config;
+		String conversation = getConversation(repository);
+		if (repository.isPersonalRepository() && !cfg.isPostPersonalRepos()) {
+			return Route.unroutable(cfg, conversation, "personal repository");
+		}
+		if (!cfg.isPostRepository(conversation, repository.name)) {
+			return Route.unroutable(cfg, conversation, "filtered repository");
+		}
+		return new Route(cfg, conversation, getToken(conversation));
+	}
+
+	/**
+	 * Counts events which were not posted because they could not be routed
+	 * or were filtered.
+	 *
+	 * @param events
+	 */
+	void skip(int events) {
+		if (events > 0) {
+			skipped.addAndGet(events);
 		}
-		return true;
 	}
 
 	/**
@@ -107,16 +434,28 @@ public class Glip implements IManager {
 	 * @param payload
 	 */
 	public void setConversation(RepositoryModel repository, Payload payload) {
-		boolean useProjectConversation = runtimeManager.getSettings().getBoolean(Plugin.SETTING_USE_PROJECT_CONVERSATIONS, false);
-		if (!useProjectConversation) {
-			return;
+		String conversation = getConversation(repository);
+		if (conversation != null) {
+			payload.setConversation(conversation);
+		}
+	}
+
+	/**
+	 * Returns the conversation for the repository.
+	 *
+	 * @param repository
+	 * @return the project conversation or null for the default conversation
+	 */
+	String getConversation(RepositoryModel repository) {
+		if (!config.isUseProjectConversations()) {
+			return null;
 		}
 
 		if (StringUtils.isEmpty(repository.projectPath)) {
-			return;
+			return null;
 		}
 
-		payload.setConversation(repository.projectPath);
+		return repository.projectPath;
 	}
 
 	/**
@@ -126,7 +465,403 @@ public class Glip implements IManager {
 	 * @throws IOException
 	 */
 	public void sendAsync(final Payload payload) {
-		taskPool.submit(new GlipTask(this, payload));
+		Digest summary = digest;
+		if (summary != null && summary.offer(payload)) {
+			// payload will be counted in the next digest of the conversation
+			return;
+		}
+		Coalescer window = coalescer;
+		if (window != null && window.offer(payload)) {
+			// payload will be merged with other payloads for the repository
+			return;
+		}
+		dispatch(payload);
+	}
+
+	/**
+	 * Asynchronously send a batch of payload messages.
+	 *
+	 * The payloads are grouped by token and conversation and each group is
+	 * queued as a single task which posts the payloads in order, one after
+	 * another, on one pooled keep-alive connection.  If a coalescing window
+	 * is configured the ref change payloads of a group are offered to the
+	 * window instead, where they are merged with the payloads of the other
+	 * pushes to the same repository within the window.  Payloads for a
+	 * conversation in digest mode are counted in its next digest.
+	 *
+	 * @param payloads
+	 */
+	public void sendAll(Collection<? extends Payload> payloads) {
+		if (payloads.isEmpty()) {
+			return;
+		}
+		DispatchPool pool = taskPool;
+		if (pool == null) {
+			log.warn("Glip is not started, {} messages discarded", payloads.size());
+			return;
+		}
+
+		Digest summary = digest;
+		Map<String, List<Payload>> groups = new LinkedHashMap<String, List<Payload>>();
+		for (Payload payload : payloads) {
+			if (summary != null && summary.offer(payload)) {
+				continue;
+			}
+			String key = getToken(payload) + "\u0000" + payload.getConversation();
+			List<Payload> group = groups.get(key);
+			if (group == null) {
+				group = new ArrayList<Payload>();
+				groups.put(key, group);
+			}
+			group.add(payload);
+		}
+
+		Coalescer window = coalescer;
+		for (List<Payload> group : groups.values()) {
+			List<Payload> batch = group;
+			if (window != null) {
+				batch = window.offerAll(group);
+				if (batch.isEmpty()) {
+					// delivered when the window closes
+					continue;
+				}
+			}
+
+			// chain the tasks so that a single worker posts them in order
+			GlipTask first = null;
+			GlipTask last = null;
+			for (Payload payload : batch) {
+				GlipTask task = newTask(payload);
+				if (first == null) {
+					first = task;
+				} else {
+					last.next = task;
+				}
+				last = task;
+			}
+			pool.execute(first);
+		}
+	}
+
+	/**
+	 * Queues a payload for delivery by the dispatch pool.
+	 *
+	 * @param payload
+	 */
+	void dispatch(Payload payload) {
+		DispatchPool pool = taskPool;
+		if (pool == null) {
+			log.warn("Glip is not started, message for conversation '{}' discarded", payload.getConversation());
+			return;
+		}
+		pool.execute(newTask(payload));
+	}
+
+	/**
+	 * Creates a delivery task for the payload.  The payload is journaled in
+	 * the outbox first, a deferred payload as the inputs of its event.
+	 *
+	 * @param payload
+	 * @return a task
+	 */
+	GlipTask newTask(Payload payload) {
+		return new GlipTask(this, payload, journal(payload));
+	}
+
+	/**
+	 * Appends a payload to the outbox.
+	 *
+	 * @param payload
+	 * @return the journal id or 0 if the payload was not journaled
+	 */
+	private long journal(Payload payload) {
+		Outbox journal = outbox;
+		if (journal == null) {
+			return 0;
+		}
+		try {
+			long journalId = journal.append(payload);
+			if (syncOnAppend) {
+				journal.sync();
+			}
+			return journalId;
+		} catch (Exception e) {
+			log.error("Failed to journal Glip message", e);
+		}
+		return 0;
+	}
+
+	/**
+	 * Removes a delivered or discarded payload from the outbox.
+	 *
+	 * @param journalId
+	 */
+	void acknowledge(long journalId) {
+		Outbox journal = outbox;
+		if (journal != null && journalId > 0) {
+			journal.ack(journalId);
+		}
+	}
+
+	/**
+	 * Schedules another delivery attempt for a failed task.  The task is
+	 * resubmitted to the dispatch pool by the scheduler when the backoff
+	 * delay has elapsed so that no worker is blocked while waiting.
+	 *
+	 * @param task
+	 * @param error
+	 * @return true if a retry was scheduled
+	 */
+	boolean retry(GlipTask task, IOException error) {
+		RetryPolicy policy = retryPolicy;
+		if (policy == null) {
+			return false;
+		}
+
+		long delay = policy.getDelay(task.attempts, error);
+		if (delay < 0 || !schedule(task, delay)) {
+			return false;
+		}
+		metrics.onRetried(task.payload);
+		log.debug("Retrying Glip message for conversation '{}' in {}ms", task.getConversation(), delay);
+		return true;
+	}
+
+	/**
+	 * Resubmits a task to the dispatch pool after a delay.
+	 *
+	 * @param task
+	 * @param delay
+	 * @return true if the task was scheduled
+	 */
+	boolean schedule(final GlipTask task, long delay) {
+		return schedule(new Runnable() {
+			@Override
+			public void run() {
+				resubmit(task);
+			}
+		}, delay);
+	}
+
+	/**
+	 * Runs a command on the Glip scheduler after a delay.
+	 *
+	 * @param command
+	 * @param delay
+	 * @return true if the command was scheduled
+	 */
+	boolean schedule(Runnable command, long delay) {
+		ScheduledExecutorService timer = scheduler;
+		if (timer == null) {
+			return false;
+		}
+		try {
+			timer.schedule(command, delay, TimeUnit.MILLISECONDS);
+			return true;
+		} catch (RejectedExecutionException e) {
+			// stopping, the message remains in the outbox
+			return false;
+		}
+	}
+
+	/**
+	 * Resubmits a deferred task to the head of its dispatch lane.
+	 *
+	 * @param task
+	 */
+	void resubmit(GlipTask task) {
+		DispatchPool pool = taskPool;
+		if (pool != null) {
+			task.queued = System.nanoTime();
+			pool.resume(task);
+		}
+	}
+
+	/**
+	 * Discards a deferred task without delivering it.
+	 *
+	 * @param task
+	 */
+	void discard(GlipTask task) {
+		log.warn("Discarded Glip message for conversation '{}'", task.getConversation());
+		task.drop();
+		DispatchPool pool = taskPool;
+		if (pool != null) {
+			// the task was deferred, let the rest of its lane continue
+			pool.release(task);
+		}
+	}
+
+	/**
+	 * Returns the number of delivery attempts which have been retried.
+	 *
+	 * @return the retry count
+	 */
+	public long getRetryCount() {
+		return metrics.getTotal().getRetried();
+	}
+
+	/**
+	 * Returns the number of messages waiting to be delivered.
+	 *
+	 * @return the queue depth
+	 */
+	public int getQueueDepth() {
+		DispatchPool pool = taskPool;
+		return pool == null ? 0 : pool.getQueueDepth();
+	}
+
+	/**
+	 * Returns the number of messages in the outbox waiting to be delivered.
+	 *
+	 * @return the number of journaled messages
+	 */
+	public int getOutboxPendingCount() {
+		Outbox journal = outbox;
+		return journal == null ? 0 : journal.getPendingCount();
+	}
+
+	/**
+	 * Returns the number of conversations with queued or deferred messages.
+	 *
+	 * @return the number of dispatch lanes
+	 */
+	public int getLaneCount() {
+		DispatchPool pool = taskPool;
+		return pool == null ? 0 : pool.getLaneCount();
+	}
+
+	/**
+	 * Returns the threads which deliver messages, either the pool or virtual
+	 * threads.
+	 *
+	 * @return the dispatch mode
+	 */
+	public DispatchMode getDispatchMode() {
+		return dispatchMode;
+	}
+
+	/**
+	 * Returns the number of dispatch workers.
+	 *
+	 * @return the number of workers
+	 */
+	public int getWorkerCount() {
+		DispatchPool pool = taskPool;
+		return pool == null ? 0 : pool.getMaximumPoolSize();
+	}
+
+	/**
+	 * Returns the number of dispatch workers which are delivering a message.
+	 *
+	 * @return the number of busy workers
+	 */
+	public int getActiveWorkerCount() {
+		DispatchPool pool = taskPool;
+		return pool == null ? 0 : pool.getActiveCount();
+	}
+
+	/**
+	 * Returns the number of messages which may wait for a worker.
+	 *
+	 * @return the queue capacity
+	 */
+	public int getQueueCapacity() {
+		DispatchPool pool = taskPool;
+		return pool == null ? 0 : pool.getQueueCapacity();
+	}
+
+	/**
+	 * Returns the state of the http connection pool.
+	 *
+	 * @return the pool stats or null if Glip is not started
+	 */
+	public PoolStats getConnectionStats() {
+		GlipTransport http = transport;
+		return http == null ? null : http.getPoolStats();
+	}
+
+	/**
+	 * Returns the number of http connections opened since Glip was started.
+	 *
+	 * @return the connection count
+	 */
+	public long getConnectionCount() {
+		GlipTransport http = transport;
+		return http == null ? 0 : http.getConnectionCount();
+	}
+
+	/**
+	 * Returns the number of messages which were merged into another message,
+	 * either by the coalescing window or by the coalesce overflow policy.
+	 *
+	 * @return the coalesced count
+	 */
+	public long getCoalescedCount() {
+		long count = 0;
+		Coalescer window = coalescer;
+		if (window != null) {
+			count += window.getCoalescedCount();
+		}
+		DispatchPool pool = taskPool;
+		if (pool != null) {
+			count += pool.getCoalescedCount();
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the number of events which were skipped before a message was
+	 * prepared because they could not be routed or were filtered.
+	 *
+	 * @return the skipped count
+	 */
+	public long getSkippedCount() {
+		return skipped.get();
+	}
+
+	/**
+	 * Returns the number of events which were summarized in a digest rather
+	 * than posted individually.
+	 *
+	 * @return the digested count
+	 */
+	public long getDigestedCount() {
+		Digest summary = digest;
+		return summary == null ? 0 : summary.getDigestedCount();
+	}
+
+	/**
+	 * Returns the number of events waiting for the digest of their
+	 * conversation.
+	 *
+	 * @return the pending count
+	 */
+	public int getDigestPendingCount() {
+		Digest summary = digest;
+		return summary == null ? 0 : summary.getPendingCount();
+	}
+
+	/**
+	 * Returns the number of times a message was submitted to a full dispatch
+	 * queue.
+	 *
+	 * @return the rejection count
+	 */
+	public long getRejectedCount() {
+		DispatchPool pool = taskPool;
+		return pool == null ? 0 : pool.getRejectedCount();
+	}
+
+	/**
+	 * Returns the number of messages discarded because the dispatch queue was
+	 * full.
+	 *
+	 * @return the drop count
+	 */
+	public long getDroppedCount() {
+		DispatchPool pool = taskPool;
+		return pool == null ? 0 : pool.getDroppedCount();
 	}
 
 	/**
@@ -136,96 +871,324 @@ public class Glip implements IManager {
 	 * @throws IOException
 	 */
 	public void send(Payload payload) throws IOException {
+		post(payload, getToken(payload));
+	}
+
+	/**
+	 * Delivers a queued task on a dispatch worker.
+	 *
+	 * The post is deferred on the scheduler if the rate limit of the token has
+	 * been reached and is held if the circuit for the endpoint is open.  A
+	 * failed post is scheduled for a retry.
+	 *
+	 * @param task
+	 * @return true if the task is done, false if it will be resubmitted
+	 */
+	boolean deliver(GlipTask task) {
+		metrics.onDequeued(System.nanoTime() - task.queued);
 
-		String conversation = payload.getConversation();
-		String token;
+		Payload payload = task.payload;
+		if (!payload.isRendered()) {
+			long start = System.nanoTime();
+			payload.render();
+			metrics.onRendered(System.nanoTime() - start);
+		}
+		if (payload.isFailed()) {
+			// do not post an incomplete message
+			log.error("Discarded Glip message for conversation '{}', it could not be rendered", task.getConversation());
+			metrics.onFailed(payload);
+			acknowledge(task.journalId);
+			return true;
+		}
+		String token = getToken(payload);
 
-		if (StringUtils.isEmpty(conversation)) {
-			// default conversation
-			token = runtimeManager.getSettings().getString(Plugin.SETTING_DEFAULT_TOKEN, null);
-		} else {
-			// specified conversation, validate token
-			token = runtimeManager.getSettings().getString(String.format(Plugin.SETTING_CONVERSATION_TOKEN, conversation), null);
-			if (StringUtils.isEmpty(token)) {
-				token = runtimeManager.getSettings().getString(Plugin.SETTING_DEFAULT_TOKEN, null);
-				log.warn("No Glip API token specified for '{}', defaulting to default conversation'", payload.getConversation());
-				log.warn("Please set '{} = TOKEN' in gitblit.properties", String.format(Plugin.SETTING_CONVERSATION_TOKEN, conversation));
+		TokenBucket limiter = getRateLimiter(token);
+		if (limiter != null) {
+			long wait = limiter.tryAcquire();
+			if (wait > 0) {
+				if (!schedule(task, wait)) {
+					log.warn("Glip is stopping, message for conversation '{}' remains in the outbox", task.getConversation());
+				}
+				return false;
 			}
 		}
 
-		Gson gson = new GsonBuilder().registerTypeAdapter(Date.class, new GmtDateTypeAdapter()).create();
-		String json = gson.toJson(payload);
-		log.debug(json);
-
-		HttpClient client = new DefaultHttpClient();
-		client.getParams().setParameter(AllClientPNames.CONNECTION_TIMEOUT, 5000);
-		client.getParams().setParameter(AllClientPNames.SO_TIMEOUT, 5000);
+		String endpoint = config.getEndPoint(token);
+		CircuitBreaker breaker = getCircuitBreaker(endpoint);
+		if (!breaker.allowRequest()) {
+			breaker.hold(task);
+			return false;
+		}
 
-		String conversationUrl = payload.getEndPoint(token);
-		HttpPost post = new HttpPost(conversationUrl);
-		post.getParams().setParameter(CoreProtocolPNames.USER_AGENT, Constants.NAME + "/" + Constants.getVersion());
-		post.getParams().setParameter(CoreProtocolPNames.HTTP_CONTENT_CHARSET, "UTF-8");
+		GlipTransport http = transport;
+		if (http == null) {
+			breaker.release();
+			log.warn("Glip is stopping, message for conversation '{}' remains in the outbox", task.getConversation());
+			return false;
+		}
 
-		// post as JSON
-		StringEntity entity = new StringEntity(json, "UTF-8");
-		entity.setContentType("application/json");
-		post.setEntity(entity);
+		if (log.isDebugEnabled()) {
+			log.debug(PayloadEntity.toJson(payload));
+		}
 
-		HttpResponse response = client.execute(post);
-		int rc = response.getStatusLine().getStatusCode();
+		task.attempts++;
+		Delivery delivery = new Delivery(task, breaker);
+		metrics.onPosting();
+		try {
+			http.post(payload, endpoint, delivery);
+		} catch (RuntimeException e) {
+			// e.g. a malformed webhook url or a stopped client
+			delivery.rejected(e, transport != http);
+		}
+		return delivery.isDone();
+	}
 
-		if (HttpStatus.SC_OK == rc) {
-			// This is the expected result code
-			// replace this with post.closeConnection() after JGit updates to HttpClient 4.2
-			post.abort();
+	/**
+	 * Continues the lane of a task whose post completed after the dispatch
+	 * worker moved on.
+	 *
+	 * @param task
+	 */
+	void complete(GlipTask task) {
+		DispatchPool pool = taskPool;
+		if (pool == null) {
+			return;
+		}
+		if (task.next != null) {
+			resubmit(task.next);
 		} else {
-			String result = null;
-			InputStream is = response.getEntity().getContent();
-			try {
-				byte [] buffer = new byte[8192];
-				ByteArrayOutputStream os = new ByteArrayOutputStream();
-				int len = 0;
-				while ((len = is.read(buffer)) > -1) {
-					os.write(buffer, 0, len);
-				}
-				result = os.toString("UTF-8");
-			} finally {
-				if (is != null) {
-					is.close();
-				}
+			pool.release(task);
+		}
+	}
+
+	/**
+	 * Records the outcome of a post.  The blocking transport completes the
+	 * post on the dispatch worker, the async transport completes it later on
+	 * an I/O thread.
+	 */
+	private class Delivery implements GlipTransport.Callback {
+
+		static final int POSTING = 0;
+
+		static final int COMPLETED = 1;
+
+		static final int RETURNED = 2;
+
+		final GlipTask task;
+
+		final CircuitBreaker breaker;
+
+		final long start = System.nanoTime();
+
+		final AtomicInteger state = new AtomicInteger(POSTING);
+
+		volatile boolean done;
+
+		Delivery(GlipTask task, CircuitBreaker breaker) {
+			this.task = task;
+			this.breaker = breaker;
+		}
+
+		@Override
+		public void completed() {
+			Payload payload = task.payload;
+			metrics.onPosted(payload, System.nanoTime() - start);
+			metrics.onDelivered(payload);
+			breaker.onSuccess();
+			acknowledge(task.journalId);
+			finish(true);
+		}
+
+		@Override
+		public void failed(IOException e) {
+			Payload payload = task.payload;
+			metrics.onPosted(payload, System.nanoTime() - start);
+			if (!(e instanceof GlipException) || ((GlipException) e).getStatusCode() >= 500) {
+				// the endpoint is unavailable
+				breaker.onFailure();
+			} else {
+				// the endpoint responded
+				breaker.onSuccess();
 			}
 
-			log.error("Glip plugin sent:");
-			log.error(json);
-			log.error("Glip returned:");
-			log.error(result);
+			if (retry(task, e)) {
+				log.warn("Failed to send asynchronously to Glip, attempt {}: {}", task.attempts, e.getMessage());
+				finish(false);
+				return;
+			}
 
-			throw new IOException(String.format("Glip Error (%s): %s", rc, result));
+			log.error("Failed to send asynchronously to Glip!", e);
+			metrics.onFailed(payload);
+			if (e instanceof GlipException && ((GlipException) e).isPermanent()) {
+				// Glip will never accept this payload
+				acknowledge(task.journalId);
+			}
+			finish(true);
 		}
+
+		/**
+		 * Records a post which the transport refused to make.
+		 *
+		 * @param e
+		 * @param stopping
+		 *            true if the transport was stopped, the message remains
+		 *            in the outbox
+		 */
+		void rejected(RuntimeException e, boolean stopping) {
+			Payload payload = task.payload;
+			metrics.onPosted(payload, System.nanoTime() - start);
+			// says nothing about the endpoint, but may have been the probe
+			breaker.release();
+			if (stopping) {
+				log.warn("Glip is stopping, message for conversation '{}' remains in the outbox", task.getConversation());
+			} else {
+				// posting the same payload again will fail the same way
+				log.error("Failed to send to Glip!", e);
+				metrics.onFailed(payload);
+				acknowledge(task.journalId);
+			}
+			finish(true);
+		}
+
+		private void finish(boolean done) {
+			this.done = done;
+			if (state.compareAndSet(POSTING, COMPLETED)) {
+				// the dispatch worker continues the lane
+				return;
+			}
+			if (done) {
+				complete(task);
+			}
+		}
+
+		/**
+		 * Called by the dispatch worker once the post has been handed to the
+		 * transport.
+		 *
+		 * @return true if the task is done, false if it is still in flight or
+		 *         will be retried
+		 */
+		boolean isDone() {
+			if (state.compareAndSet(POSTING, RETURNED)) {
+				// completes later
+				return false;
+			}
+			return done;
+		}
+	}
+
+	private TokenBucket getRateLimiter(String token) {
+		if (rateLimit <= 0 || token == null) {
+			return null;
+		}
+		TokenBucket limiter = rateLimiters.get(token);
+		if (limiter == null) {
+			rateLimiters.putIfAbsent(token, new TokenBucket(rateLimit, rateLimitBurst));
+			limiter = rateLimiters.get(token);
+		}
+		return limiter;
 	}
 
-	private static class GlipTask implements Serializable, Callable<Boolean> {
+	private CircuitBreaker getCircuitBreaker(String endpoint) {
+		String host;
+		try {
+			host = URI.create(endpoint).getHost();
+		} catch (IllegalArgumentException e) {
+			host = null;
+		}
+		if (host == null) {
+			host = endpoint;
+		}
+		CircuitBreaker breaker = circuitBreakers.get(host);
+		if (breaker == null) {
+			circuitBreakers.putIfAbsent(host, new CircuitBreaker(this, host, breakerThreshold, breakerCooldown, maxHeld));
+			breaker = circuitBreakers.get(host);
+		}
+		return breaker;
+	}
+
+	/**
+	 * Returns the token resolved by the route of the payload.  A payload which
+	 * was not routed, e.g. one recovered from the outbox, uses the token of
+	 * its conversation.
+	 *
+	 * @param payload
+	 * @return the token
+	 */
+	String getToken(Payload payload) {
+		String token = payload.getToken();
+		if (StringUtils.isEmpty(token)) {
+			return getToken(payload.getConversation());
+		}
+		return token;
+	}
+
+	/**
+	 * Returns the Glip token for the conversation, falling back to the
+	 * default token.
+	 *
+	 * @param conversation
+	 * @return the token
+	 */
+	String getToken(String conversation) {
+		GlipConfig cfg = config;
+		if (StringUtils.isEmpty(conversation)) {
+			// default conversation
+			return cfg.getDefaultToken();
+		}
+
+		// specified conversation, validate token
+		String token = cfg.getToken(conversation);
+		if (StringUtils.isEmpty(token)) {
+			token = cfg.getDefaultToken();
+			if (warnedConversations.add(conversation)) {
+				log.warn("No Glip API token specified for '{}', defaulting to default conversation'", conversation);
+				log.warn("Please set '{} = TOKEN' in gitblit.properties", String.format(Plugin.SETTING_CONVERSATION_TOKEN, conversation));
+			}
+		}
+		return token;
+	}
 
-		private static final long serialVersionUID = 1L;
+	/**
+	 * Posts a payload to the Glip webhook of the token.
+	 *
+	 * @param payload
+	 * @param token
+	 * @throws IOException
+	 */
+	void post(Payload payload, String token) throws IOException {
 
-		final Logger log = LoggerFactory.getLogger(getClass());
-		final Glip glip;
-		final Payload payload;
+		if (log.isDebugEnabled()) {
+			log.debug(PayloadEntity.toJson(payload));
+		}
 
-		public GlipTask(Glip glip, Payload payload) {
-			this.glip = glip;
-			this.payload = payload;
+		GlipTransport http = transport;
+		if (http == null) {
+			throw new IOException("Glip is not started");
 		}
+		http.send(payload, config.getEndPoint(token));
+	}
 
-		@Override
-		public Boolean call() {
-			try {
-				glip.send(payload);
-				return true;
-			} catch (IOException e) {
-				log.error("Failed to send asynchronously to Glip!", e);
+	/**
+	 * Parses a Retry-After header which may be either a number of seconds or
+	 * an HTTP date.
+	 *
+	 * @param header
+	 * @return the delay in milliseconds or -1
+	 */
+	static long getRetryAfter(Header header) {
+		if (header == null || StringUtils.isEmpty(header.getValue())) {
+			return -1;
+		}
+		String value = header.getValue().trim();
+		try {
+			return Math.max(0, Long.parseLong(value) * 1000L);
+		} catch (NumberFormatException e) {
+			Date date = DateUtils.parseDate(value);
+			if (date == null) {
+				return -1;
 			}
-			return false;
+			return Math.max(0, date.getTime() - System.currentTimeMillis());
 		}
 	}
 }
@@ -0,0 +1,436 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.glip;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TimeZone;
+
+import org.eclipse.jgit.internal.storage.dfs.DfsRepositoryDescription;
+import org.eclipse.jgit.internal.storage.dfs.InMemoryRepository;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.TreeFormatter;
+import org.eclipse.jgit.transport.ReceiveCommand;
+
+import com.gitblit.IStoredSettings;
+import com.gitblit.manager.IRuntimeManager;
+import com.gitblit.models.RepositoryModel;
+import com.gitblit.models.TicketModel;
+import com.gitblit.models.TicketModel.Change;
+import com.gitblit.models.TicketModel.Patchset;
+import com.gitblit.models.TicketModel.PatchsetType;
+import com.gitblit.models.TicketModel.Score;
+import com.gitblit.models.UserModel;
+
+/**
+ * Measures the hot paths of the plugin inside a running Gitblit so that
+ * performance changes can be compared against a baseline.
+ *
+ * Every benchmark is warmed up before it is measured and reports the
+ * throughput and the mean, median and 99th percentile time of a single
+ * operation.  Rendering is measured against synthetic in-memory repositories
+ * and delivery is measured against a local fake webhook so nothing is posted
+ * to Glip.
+ *
+ * @author James Moger
+ *
+ */
+class GlipBenchmark {
+
+	/**
+	 * A measured operation.  The result is retained so that the work can not
+	 * be optimized away.
+	 */
+	abstract static class Operation {
+		abstract Object run() throws Exception;
+	}
+
+	final IRuntimeManager runtimeManager;
+
+	final PrintWriter out;
+
+	final int warmup;
+
+	final int iterations;
+
+	volatile Object sink;
+
+	GlipBenchmark(IRuntimeManager runtimeManager, PrintWriter out, int warmup, int iterations) {
+		this.runtimeManager = runtimeManager;
+		this.out = out;
+		this.warmup = Math.max(0, warmup);
+		this.iterations = Math.max(1, iterations);
+	}
+
+	/**
+	 * Prints the header of the results table.
+	 */
+	void header() {
+		out.println(String.format("%-28s %10s %12s %12s %12s %12s",
+				"benchmark", "ops", "ops/s", "mean (us)", "p50 (us)", "p99 (us)"));
+		out.flush();
+	}
+
+	/**
+	 * Warms up and measures an operation.
+	 *
+	 * @param name
+	 * @param runs
+	 *            the number of measured operations
+	 * @param op
+	 * @throws Exception
+	 */
+	void measure(String name, int runs, Operation op) throws Exception {
+		for (int i = 0; i < Math.min(warmup, runs); i++) {
+			sink = op.run();
+		}
+
+		long [] times = new long[runs];
+		long start = System.nanoTime();
+		for (int i = 0; i < runs; i++) {
+			long t0 = System.nanoTime();
+			sink = op.run();
+			times[i] = System.nanoTime() - t0;
+		}
+		long elapsed = System.nanoTime() - start;
+
+		Arrays.sort(times);
+		report(name, runs, elapsed, elapsed / runs, times[runs / 2], times[Math.min(runs - 1, (int) (runs * 0.99))]);
+	}
+
+	private void report(String name, long ops, long elapsed, long mean, long p50, long p99) {
+		double opsPerSecond = ops * 1000000000d / Math.max(1, elapsed);
+		out.println(String.format("%-28s %10d %12.1f %12s %12s %12s",
+				name, ops, opsPerSecond, micros(mean), micros(p50), micros(p99)));
+		out.flush();
+	}
+
+	private String micros(long nanos) {
+		return nanos < 0 ? "-" : String.format("%.1f", nanos / 1000d);
+	}
+
+	/**
+	 * Measures streaming a payload as JSON, as done for every post.
+	 *
+	 * @throws Exception
+	 */
+	void serialization() throws Exception {
+		final Payload payload = samplePayload();
+		final CountingOutputStream os = new CountingOutputStream();
+		measure("serialize", iterations, new Operation() {
+			@Override
+			Object run() throws IOException {
+				PayloadEntity.write(payload, os);
+				return os.count;
+			}
+		});
+	}
+
+	/**
+	 * Measures rendering a fast-forward push of the specified number of
+	 * commits.  Large ranges are measured with fewer operations.
+	 *
+	 * @param commits
+	 * @throws Exception
+	 */
+	void renderUpdate(int commits) throws Exception {
+		final GlipReceiveHook hook = new GlipReceiveHook();
+		final UserModel user = sampleUser();
+		final RepositoryModel repo = new RepositoryModel();
+		repo.name = "benchmark.git";
+
+		final Repository db = new InMemoryRepository(new DfsRepositoryDescription(repo.name));
+		try {
+			final ObjectId [] range = commitChain(db, commits);
+			final ReceiveCommand cmd = new ReceiveCommand(range[0], range[1], Constants.R_HEADS + "master");
+			int runs = (int) Math.max(10, Math.min(iterations, 1000000L / Math.max(1, commits)));
+			measure("render-update-" + commits, runs, new Operation() {
+				@Override
+				Object run() {
+					GlipReceiveHook.RefChange payload = new GlipReceiveHook.RefChange(hook, repo.name, user, cmd,
+							GlipReceiveHook.RefType.BRANCH, true);
+					hook.renderUpdate(payload, db);
+					return payload;
+				}
+			});
+		} finally {
+			db.close();
+		}
+	}
+
+	/**
+	 * Measures rendering the field table of a ticket change.
+	 *
+	 * @throws Exception
+	 */
+	void ticketFields() throws Exception {
+		final GlipTicketHook hook = new GlipTicketHook();
+		final TicketModel ticket = sampleTicket(0);
+		final Change change = new Change("benchmark");
+		change.setField(TicketModel.Field.type, TicketModel.Type.Bug);
+		change.setField(TicketModel.Field.milestone, "1.0.0");
+		change.setField(TicketModel.Field.topic, "performance");
+		change.setField(TicketModel.Field.labels, "backend,glip");
+		change.setField(TicketModel.Field.responsible, "admin");
+		change.comment("This is a benchmark comment.");
+		final Set<TicketModel.Field> exclusions = new HashSet<TicketModel.Field>(Arrays.asList(
+				TicketModel.Field.watchers, TicketModel.Field.voters, TicketModel.Field.mentions));
+		final GlipTicketHook.TicketEvent event = new GlipTicketHook.TicketEvent(hook, ticket, change, false);
+
+		measure("ticket-fields", iterations, new Operation() {
+			@Override
+			Object run() {
+				StringBuilder sb = new StringBuilder();
+				hook.fields(sb, event, exclusions);
+				return sb;
+			}
+		});
+	}
+
+	/**
+	 * Measures copying and rendering a review of a patchset with the
+	 * specified number of reviews.
+	 *
+	 * @param reviews
+	 * @throws Exception
+	 */
+	void reviewTable(int reviews) throws Exception {
+		final GlipTicketHook hook = new GlipTicketHook();
+		final TicketModel ticket = sampleTicket(Math.max(1, reviews));
+		final Change change = ticket.changes.get(ticket.changes.size() - 1);
+
+		measure("review-table-" + Math.max(1, reviews), iterations, new Operation() {
+			@Override
+			Object run() {
+				GlipTicketHook.TicketEvent payload = new GlipTicketHook.TicketEvent(hook, ticket, change, false);
+				hook.renderUpdateTicket(payload);
+				return payload;
+			}
+		});
+	}
+
+	/**
+	 * Measures the throughput of sendAsync through the dispatch pool, the
+	 * connection pool and a local fake webhook.  The plugin settings are used
+	 * except that the outbox, the coalescing window and the rate limit are
+	 * disabled and a full queue blocks the sender.  The messages are spread
+	 * over one conversation per worker because each conversation is
+	 * delivered in order by one worker at a time.
+	 *
+	 * @param messages
+	 * @throws Exception
+	 */
+	void sendAsync(int messages) throws Exception {
+		final int count = Math.max(1, messages);
+		BenchmarkSettings settings = new BenchmarkSettings(runtimeManager.getSettings());
+		settings.overrideSetting(Plugin.SETTING_DEFAULT_TOKEN, "benchmark");
+		settings.overrideSetting(Plugin.SETTING_USE_OUTBOX, "false");
+		settings.overrideSetting(Plugin.SETTING_COALESCE_WINDOW, "0");
+		settings.overrideSetting(Plugin.SETTING_RATE_LIMIT, "0");
+		settings.overrideSetting(Plugin.SETTING_CONFIG_REFRESH_INTERVAL, "0");
+		settings.overrideSetting(Plugin.SETTING_OVERFLOW_POLICY, OverflowPolicy.BLOCK.name());
+		settings.overrideSetting(Plugin.SETTING_OVERFLOW_BLOCK_TIMEOUT, "60000");
+
+		FakeWebhook webhook = new FakeWebhook(0, true, 0);
+		webhook.start();
+		try {
+			settings.overrideSetting(Plugin.SETTING_HOOKS_URL, webhook.getUrl());
+			int conversations = Math.max(1, settings.getInteger(Plugin.SETTING_POOL_SIZE, 4));
+			Payload [] payloads = new Payload[conversations];
+			for (int i = 0; i < conversations; i++) {
+				String conversation = "benchmark-" + i;
+				settings.overrideSetting(String.format(Plugin.SETTING_CONVERSATION_TOKEN, conversation), conversation);
+				payloads[i] = samplePayload().conversation(conversation);
+			}
+
+			Glip glip = new Glip(runtimeManager, settings);
+			glip.start();
+			try {
+				// warm up the connections and the workers
+				int warm = Math.min(warmup, count);
+				for (int i = 0; i < warm; i++) {
+					glip.sendAsync(payloads[i % conversations]);
+				}
+				webhook.await(warm, 60000);
+
+				long base = webhook.getReceived();
+				long start = System.nanoTime();
+				for (int i = 0; i < count; i++) {
+					glip.sendAsync(payloads[i % conversations]);
+				}
+				boolean complete = webhook.await(base + count, 60000);
+				long elapsed = System.nanoTime() - start;
+				if (!complete) {
+					out.println(String.format("send-async timed out, %d of %d messages received",
+							webhook.getReceived() - base, count));
+				}
+				// individual messages are not timed, only the mean is known
+				report("send-async", count, elapsed, elapsed / count, -1, -1);
+			} finally {
+				glip.stop();
+			}
+		} finally {
+			webhook.stop();
+		}
+	}
+
+	private Payload samplePayload() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("**benchmark** has pushed 5 commits to [master](https://localhost:8443/log?r=benchmark.git&h=master)\n\n");
+		for (int i = 0; i < 5; i++) {
+			sb.append(String.format("|Benchmark|[%06x](https://localhost:8443/commit?r=benchmark.git&h=%040x)|Commit <%d> \"quoted\" & escaped|\n", i, i, i));
+		}
+		return new Payload()
+			.icon("https://www.gravatar.com/avatar/00000000000000000000000000000000?s=48&d=identicon")
+			.activity("Benchmark has pushed to benchmark")
+			.title("benchmark")
+			.body(sb.toString());
+	}
+
+	private UserModel sampleUser() {
+		UserModel user = new UserModel("benchmark");
+		user.displayName = "Benchmark";
+		user.emailAddress = "benchmark@localhost";
+		return user;
+	}
+
+	/**
+	 * Creates a ticket with a patchset and the specified number of reviews of
+	 * the patchset.
+	 */
+	private TicketModel sampleTicket(int reviews) {
+		TicketModel ticket = new TicketModel();
+		ticket.repository = "benchmark.git";
+		ticket.number = 1;
+		ticket.title = "Benchmark ticket";
+
+		Change created = new Change("benchmark");
+		created.setField(TicketModel.Field.title, ticket.title);
+		created.setField(TicketModel.Field.body, "A ticket for benchmarking.");
+		ticket.applyChange(created);
+
+		Patchset patchset = new Patchset();
+		patchset.number = 1;
+		patchset.rev = 1;
+		patchset.type = PatchsetType.Proposal;
+		patchset.base = ObjectId.zeroId().getName();
+		patchset.tip = ObjectId.zeroId().getName();
+		patchset.added = 1;
+		Change proposed = new Change("benchmark");
+		proposed.patchset = patchset;
+		ticket.applyChange(proposed);
+
+		Score [] scores = Score.values();
+		for (int i = 0; i < reviews; i++) {
+			Change review = new Change("reviewer" + i, new Date());
+			review.review(patchset, scores[i % scores.length], false);
+			ticket.applyChange(review);
+		}
+		return ticket;
+	}
+
+	/**
+	 * Creates a linear history of the specified number of commits on top of a
+	 * root commit.
+	 *
+	 * @return the root commit and the tip commit
+	 */
+	private ObjectId [] commitChain(Repository db, int commits) throws IOException {
+		ObjectInserter inserter = db.newObjectInserter();
+		try {
+			ObjectId tree = inserter.insert(new TreeFormatter());
+			long time = System.currentTimeMillis() - commits * 1000L;
+			int tz = TimeZone.getDefault().getOffset(time) / 60000;
+
+			ObjectId root = null;
+			ObjectId parent = null;
+			for (int i = 0; i <= commits; i++) {
+				PersonIdent ident = new PersonIdent("Benchmark", "benchmark@localhost", time + i * 1000L, tz);
+				CommitBuilder commit = new CommitBuilder();
+				commit.setTreeId(tree);
+				if (parent != null) {
+					commit.setParentId(parent);
+				}
+				commit.setAuthor(ident);
+				commit.setCommitter(ident);
+				commit.setMessage("Commit " + i + "\n\nA synthetic commit for benchmarking.\n");
+				parent = inserter.insert(commit);
+				if (root == null) {
+					root = parent;
+				}
+			}
+			inserter.flush();
+			return new ObjectId [] { root, parent };
+		} finally {
+			inserter.close();
+		}
+	}
+
+	/**
+	 * Counts and discards the bytes written to it.
+	 */
+	private static class CountingOutputStream extends OutputStream {
+		long count;
+
+		@Override
+		public void write(int b) {
+			count++;
+		}
+
+		@Override
+		public void write(byte [] b, int off, int len) {
+			count += len;
+		}
+	}
+
+	/**
+	 * The Gitblit settings with local overrides.
+	 */
+	private static class BenchmarkSettings extends IStoredSettings {
+
+		BenchmarkSettings(IStoredSettings settings) {
+			super(BenchmarkSettings.class);
+			merge(settings);
+		}
+
+		@Override
+		protected Properties read() {
+			return new Properties();
+		}
+
+		@Override
+		public boolean saveSettings() {
+			return false;
+		}
+
+		@Override
+		public boolean saveSettings(Map<String, String> updatedSettings) {
+			return false;
+		}
+	}
+}
@@ -0,0 +1,363 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.glip;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import com.gitblit.IStoredSettings;
+import com.gitblit.Keys;
+import com.gitblit.utils.JsonUtils.GmtDateTypeAdapter;
+import com.gitblit.utils.StringUtils;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+/**
+ * An immutable snapshot of the settings used while rendering and sending
+ * messages.  A new snapshot is built only when the Gitblit settings change so
+ * the hot path reads plain fields instead of looking up and parsing settings.
+ *
+ * @author James Moger
+ *
+ */
+public class GlipConfig {
+
+	/**
+	 * The serializer is stateless and thread-safe so it is shared by all
+	 * snapshots.
+	 */
+	static final Gson GSON = new GsonBuilder().registerTypeAdapter(Date.class, new GmtDateTypeAdapter()).create();
+
+	static final String DEFAULT_HOOKS_URL = "https://hooks.glip.com/webhook/";
+
+	private final Map<String, String> values;
+
+	private final String hooksUrl;
+
+	private final String defaultToken;
+
+	private final Map<String, String> tokens;
+
+	private final int digestInterval;
+
+	private final Map<String, Integer> digestIntervals;
+
+	private final PathFilter repositoryFilter;
+
+	private final PathFilter refFilter;
+
+	private final Map<String, PathFilter> repositoryFilters;
+
+	private final Map<String, PathFilter> refFilters;
+
+	private final boolean useProjectConversations;
+
+	private final String defaultIcon;
+
+	private final String ticketIcon;
+
+	private final String gitIcon;
+
+	private final boolean postPersonalRepos;
+
+	private final boolean postTickets;
+
+	private final boolean postTicketComments;
+
+	private final boolean postBranches;
+
+	private final boolean postTags;
+
+	private final String canonicalUrl;
+
+	private final LinkBuilder links;
+
+	private final int shortCommitIdLength;
+
+	private final String dateTimeFormat;
+
+	private final ReviewRenderer reviewRenderer;
+
+	/**
+	 * Builds a snapshot of the current settings.
+	 *
+	 * @param settings
+	 * @return a config snapshot
+	 */
+	public static GlipConfig load(IStoredSettings settings) {
+		Map<String, String> values = new TreeMap<String, String>();
+		List<String> keys = settings.getAllKeys("glip.");
+		if (keys != null) {
+			for (String key : keys) {
+				values.put(key, settings.getString(key, null));
+			}
+		}
+		String [] webKeys = { Keys.web.canonicalUrl, Keys.web.shortCommitIdLength,
+				Keys.web.datestampShortFormat, Keys.web.timeFormat };
+		for (String key : webKeys) {
+			values.put(key, settings.getString(key, null));
+		}
+		return new GlipConfig(settings, values);
+	}
+
+	private GlipConfig(IStoredSettings settings, Map<String, String> values) {
+		this.values = Collections.unmodifiableMap(values);
+
+		String url = settings.getString(Plugin.SETTING_HOOKS_URL, DEFAULT_HOOKS_URL);
+		if (StringUtils.isEmpty(url)) {
+			url = DEFAULT_HOOKS_URL;
+		}
+		this.hooksUrl = url.endsWith("/") ? url : url + "/";
+		this.defaultToken = settings.getString(Plugin.SETTING_DEFAULT_TOKEN, null);
+
+		// glip.<conversation>.token
+		Map<String, String> map = new HashMap<String, String>();
+		String prefix = "glip.";
+		String suffix = ".token";
+		for (Map.Entry<String, String> entry : values.entrySet()) {
+			String key = entry.getKey();
+			if (key.startsWith(prefix) && key.endsWith(suffix) && key.length() > prefix.length() + suffix.length()
+					&& !StringUtils.isEmpty(entry.getValue())) {
+				String conversation = key.substring(prefix.length(), key.length() - suffix.length());
+				map.put(conversation, entry.getValue());
+			}
+		}
+		this.tokens = Collections.unmodifiableMap(map);
+
+		// glip.<conversation>.digestInterval
+		this.digestInterval = Math.max(0, settings.getInteger(Plugin.SETTING_DIGEST_INTERVAL, 0));
+		Map<String, Integer> intervals = new HashMap<String, Integer>();
+		suffix = ".digestInterval";
+		for (Map.Entry<String, String> entry : values.entrySet()) {
+			String key = entry.getKey();
+			if (key.startsWith(prefix) && key.endsWith(suffix) && key.length() > prefix.length() + suffix.length()) {
+				String conversation = key.substring(prefix.length(), key.length() - suffix.length());
+				intervals.put(conversation, Math.max(0, settings.getInteger(key, 0)));
+			}
+		}
+		this.digestIntervals = Collections.unmodifiableMap(intervals);
+
+		// glip.[<conversation>.]includeRepositories, excludeRepositories, includeRefs, excludeRefs
+		this.repositoryFilter = PathFilter.compile(settings.getStrings(Plugin.SETTING_INCLUDE_REPOSITORIES),
+				settings.getStrings(Plugin.SETTING_EXCLUDE_REPOSITORIES));
+		this.refFilter = PathFilter.compile(settings.getStrings(Plugin.SETTING_INCLUDE_REFS),
+				settings.getStrings(Plugin.SETTING_EXCLUDE_REFS));
+		Set<String> filtered = new HashSet<String>();
+		String [] filterSuffixes = { ".includeRepositories", ".excludeRepositories", ".includeRefs", ".excludeRefs" };
+		for (String key : values.keySet()) {
+			for (String filterSuffix : filterSuffixes) {
+				if (key.startsWith(prefix) && key.endsWith(filterSuffix) && key.length() > prefix.length() + filterSuffix.length()) {
+					filtered.add(key.substring(prefix.length(), key.length() - filterSuffix.length()));
+				}
+			}
+		}
+		Map<String, PathFilter> repositoryFilters = new HashMap<String, PathFilter>();
+		Map<String, PathFilter> refFilters = new HashMap<String, PathFilter>();
+		for (String conversation : filtered) {
+			String p = prefix + conversation;
+			repositoryFilters.put(conversation, PathFilter.compile(settings.getStrings(p + ".includeRepositories"),
+					settings.getStrings(p + ".excludeRepositories")));
+			refFilters.put(conversation, PathFilter.compile(settings.getStrings(p + ".includeRefs"),
+					settings.getStrings(p + ".excludeRefs")));
+		}
+		this.repositoryFilters = Collections.unmodifiableMap(repositoryFilters);
+		this.refFilters = Collections.unmodifiableMap(refFilters);
+
+		this.useProjectConversations = settings.getBoolean(Plugin.SETTING_USE_PROJECT_CONVERSATIONS, false);
+		this.defaultIcon = settings.getString(Plugin.SETTING_DEFAULT_ICON, null);
+		this.ticketIcon = settings.getString(Plugin.SETTING_TICKET_ICON, null);
+		this.gitIcon = settings.getString(Plugin.SETTING_GIT_ICON, null);
+		this.postPersonalRepos = settings.getBoolean(Plugin.SETTING_POST_PERSONAL_REPOS, false);
+		this.postTickets = settings.getBoolean(Plugin.SETTING_POST_TICKETS, true);
+		this.postTicketComments = settings.getBoolean(Plugin.SETTING_POST_TICKET_COMMENTS, true);
+		this.postBranches = settings.getBoolean(Plugin.SETTING_POST_BRANCHES, true);
+		this.postTags = settings.getBoolean(Plugin.SETTING_POST_TAGS, true);
+
+		this.canonicalUrl = settings.getString(Keys.web.canonicalUrl, "https://localhost:8443");
+		this.links = new LinkBuilder(canonicalUrl);
+		this.shortCommitIdLength = settings.getInteger(Keys.web.shortCommitIdLength, 6);
+		String d = settings.getString(Keys.web.datestampShortFormat, "yyyy-MM-dd");
+		String t = settings.getString(Keys.web.timeFormat, "HH:mm");
+		this.dateTimeFormat = d + " " + t;
+		this.reviewRenderer = new ReviewRenderer(dateTimeFormat);
+	}
+
+	/**
+	 * Returns true if the settings this snapshot was built from are the same
+	 * as the settings of the other snapshot.
+	 *
+	 * @param config
+	 * @return true if the snapshots are equivalent
+	 */
+	public boolean isSame(GlipConfig config) {
+		return config != null && values.equals(config.values);
+	}
+
+	public Gson getGson() {
+		return GSON;
+	}
+
+	/**
+	 * Returns the webhook url for the token.
+	 *
+	 * @param token
+	 * @return the url
+	 */
+	public String getEndPoint(String token) {
+		return hooksUrl + token;
+	}
+
+	public String getDefaultToken() {
+		return defaultToken;
+	}
+
+	/**
+	 * Returns the token configured for the conversation.
+	 *
+	 * @param conversation
+	 * @return the token or null if the conversation has no token
+	 */
+	public String getToken(String conversation) {
+		return tokens.get(conversation);
+	}
+
+	/**
+	 * Returns the digest interval of the conversation, falling back to the
+	 * default digest interval.
+	 *
+	 * @param conversation
+	 * @return the interval in seconds, 0 if events are posted individually
+	 */
+	public int getDigestInterval(String conversation) {
+		if (!StringUtils.isEmpty(conversation)) {
+			Integer interval = digestIntervals.get(conversation);
+			if (interval != null) {
+				return interval;
+			}
+		}
+		return digestInterval;
+	}
+
+	/**
+	 * Returns true if events of the repository may be posted to the
+	 * conversation.  The repository must pass both the default filter and the
+	 * filter of the conversation.
+	 *
+	 * @param conversation
+	 * @param repository
+	 * @return true if the repository is accepted
+	 */
+	public boolean isPostRepository(String conversation, String repository) {
+		return accepts(repositoryFilter, repositoryFilters, conversation, repository);
+	}
+
+	/**
+	 * Returns true if changes to the ref may be posted to the conversation.
+	 * The ref must pass both the default filter and the filter of the
+	 * conversation.
+	 *
+	 * @param conversation
+	 * @param refName
+	 *            the full name of the ref, e.g. refs/heads/master
+	 * @return true if the ref is accepted
+	 */
+	public boolean isPostRef(String conversation, String refName) {
+		return accepts(refFilter, refFilters, conversation, refName);
+	}
+
+	private static boolean accepts(PathFilter filter, Map<String, PathFilter> filters, String conversation, String name) {
+		if (!filter.accepts(name)) {
+			return false;
+		}
+		if (StringUtils.isEmpty(conversation)) {
+			return true;
+		}
+		PathFilter conversationFilter = filters.get(conversation);
+		return conversationFilter == null || conversationFilter.accepts(name);
+	}
+
+	public boolean isUseProjectConversations() {
+		return useProjectConversations;
+	}
+
+	public String getDefaultIcon() {
+		return defaultIcon;
+	}
+
+	public String getTicketIcon() {
+		return ticketIcon;
+	}
+
+	public String getGitIcon() {
+		return gitIcon;
+	}
+
+	public boolean isPostPersonalRepos() {
+		return postPersonalRepos;
+	}
+
+	public boolean isPostTickets() {
+		return postTickets;
+	}
+
+	public boolean isPostTicketComments() {
+		return postTicketComments;
+	}
+
+	public boolean isPostBranches() {
+		return postBranches;
+	}
+
+	public boolean isPostTags() {
+		return postTags;
+	}
+
+	public String getCanonicalUrl() {
+		return canonicalUrl;
+	}
+
+	/**
+	 * Returns the link builder for the canonical url.
+	 *
+	 * @return the link builder
+	 */
+	LinkBuilder getLinks() {
+		return links;
+	}
+
+	public int getShortCommitIdLength() {
+		return shortCommitIdLength;
+	}
+
+	public String getDateTimeFormat() {
+		return dateTimeFormat;
+	}
+
+	/**
+	 * Returns the review table renderer for the date format.
+	 *
+	 * @return the review renderer
+	 */
+	ReviewRenderer getReviewRenderer() {
+		return reviewRenderer;
+	}
+}
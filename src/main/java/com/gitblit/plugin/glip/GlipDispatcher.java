@@ -16,6 +16,10 @@
 package com.gitblit.plugin.glip;
 
 import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
 import org.kohsuke.args4j.Argument;
 import org.kohsuke.args4j.Option;
@@ -34,6 +38,8 @@ import com.gitblit.transport.ssh.commands.UsageExample;
 import com.gitblit.transport.ssh.commands.UsageExamples;
 import com.gitblit.utils.ActivityUtils;
 import com.gitblit.utils.StringUtils;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
 
 @Extension
 @CommandMetaData(name = "glip", description = "Glip commands")
@@ -45,6 +51,9 @@ public class GlipDispatcher extends DispatchCommand {
 		if (canAdmin) {
 			register(TestCommand.class);
 			register(MessageCommand.class);
+			register(StatsCommand.class);
+			register(BenchmarkCommand.class);
+			register(WebhookDispatcher.class);
 		}
 	}
 
@@ -141,5 +150,281 @@ public class GlipDispatcher extends DispatchCommand {
 		    Glip.instance().sendAsync(payload);
 		}
 	}
-}
 
+	@CommandMetaData(name = "benchmark", description = "Measure rendering, serialization and dispatch")
+	@UsageExamples(examples = {
+			@UsageExample(syntax = "${cmd}", description = "Runs all benchmarks"),
+			@UsageExample(syntax = "${cmd} --commits 1,100 --messages 1000", description = "Runs all benchmarks with smaller inputs")
+	})
+	public static class BenchmarkCommand extends SshCommand {
+
+		@Option(name = "--warmup", aliases = {"-w" }, metaVar = "COUNT", usage = "Operations run before measuring")
+		int warmup = 200;
+
+		@Option(name = "--iterations", aliases = {"-i" }, metaVar = "COUNT", usage = "Operations measured")
+		int iterations = 1000;
+
+		@Option(name = "--commits", aliases = {"-c" }, metaVar = "SIZES", usage = "Comma-separated push sizes to render")
+		String commits = "1,100,100000";
+
+		@Option(name = "--reviews", aliases = {"-r" }, metaVar = "COUNT", usage = "Reviews in the rendered review table")
+		int reviews = 10;
+
+		@Option(name = "--messages", aliases = {"-m" }, metaVar = "COUNT", usage = "Messages sent to the stub webhook, 0 to skip")
+		int messages = 10000;
+
+		/**
+		 * Run the benchmarks
+		 */
+		@Override
+		public void run() throws Failure {
+			IRuntimeManager runtimeManager = GitblitContext.getManager(IRuntimeManager.class);
+			Glip.init(runtimeManager);
+
+			GlipBenchmark benchmark = new GlipBenchmark(runtimeManager, stdout, warmup, iterations);
+			try {
+				benchmark.header();
+				benchmark.serialization();
+				for (String size : StringUtils.getStringsFromValue(commits, ",")) {
+					benchmark.renderUpdate(Integer.parseInt(size.trim()));
+				}
+				benchmark.ticketFields();
+				benchmark.reviewTable(reviews);
+				if (messages > 0) {
+					benchmark.sendAsync(messages);
+				}
+			} catch (NumberFormatException e) {
+				throw new UnloggedFailure(1, "Invalid push size: " + e.getMessage());
+			} catch (Exception e) {
+				throw new Failure(1, e.getMessage(), e);
+			}
+		}
+	}
+
+	@CommandMetaData(name = "webhook", description = "Fake Glip webhook for load and latency testing")
+	public static class WebhookDispatcher extends DispatchCommand {
+
+		@Override
+		protected void setup() {
+			register(WebhookStartCommand.class);
+			register(WebhookStopCommand.class);
+			register(WebhookStatusCommand.class);
+			register(WebhookLoadCommand.class);
+		}
+	}
+
+	@CommandMetaData(name = "start", description = "Start a fake Glip webhook")
+	@UsageExamples(examples = {
+			@UsageExample(syntax = "${cmd} --port 8089", description = "Starts a fake webhook which accepts every post"),
+			@UsageExample(syntax = "${cmd} --port 8089 --latency 200 --jitter 100 --rate-limited 0.05 --errors 0.01 --resets 0.01", description = "Starts a slow and unreliable fake webhook")
+	})
+	public static class WebhookStartCommand extends SshCommand {
+
+		@Option(name = "--port", aliases = {"-p" }, metaVar = "PORT", usage = "Port to listen on, 0 for any free port")
+		int port = 0;
+
+		@Option(name = "--listen-all", usage = "Accept connections from other machines")
+		boolean listenAll;
+
+		@Option(name = "--latency", metaVar = "MILLIS", usage = "Delay of every response")
+		long latency;
+
+		@Option(name = "--jitter", metaVar = "MILLIS", usage = "Additional random delay of every response")
+		long jitter;
+
+		@Option(name = "--rate-limited", metaVar = "FRACTION", usage = "Fraction of posts answered with 429")
+		double rateLimited;
+
+		@Option(name = "--retry-after", metaVar = "SECONDS", usage = "Retry-After of 429 responses, 0 to omit")
+		int retryAfter = 1;
+
+		@Option(name = "--errors", metaVar = "FRACTION", usage = "Fraction of posts answered with 503")
+		double errors;
+
+		@Option(name = "--resets", metaVar = "FRACTION", usage = "Fraction of posts dropped without a response")
+		double resets;
+
+		@Option(name = "--history", metaVar = "COUNT", usage = "Number of posts to record")
+		int history = 100;
+
+		@Override
+		public void run() throws Failure {
+			FakeWebhook webhook = new FakeWebhook(port, !listenAll, history)
+				.latency(latency, jitter)
+				.rateLimit(rateLimited, retryAfter)
+				.errors(errors)
+				.resets(resets);
+			try {
+				FakeWebhook.startInstance(webhook);
+			} catch (IOException e) {
+				throw new Failure(1, e.getMessage(), e);
+			}
+			stdout.println(String.format("Fake Glip webhook listening on %s", webhook.getUrl()));
+			stdout.println(String.format("Set %s = %s to post to it", Plugin.SETTING_HOOKS_URL, webhook.getUrl()));
+		}
+	}
+
+	@CommandMetaData(name = "stop", description = "Stop the fake Glip webhook")
+	public static class WebhookStopCommand extends SshCommand {
+
+		@Override
+		public void run() throws Failure {
+			if (!FakeWebhook.stopInstance()) {
+				throw new UnloggedFailure(1, "The fake Glip webhook is not running");
+			}
+			stdout.println(String.format("Fake Glip webhook stopped, remember to reset %s", Plugin.SETTING_HOOKS_URL));
+		}
+	}
+
+	@CommandMetaData(name = "status", description = "Show the posts received by the fake Glip webhook")
+	@UsageExamples(examples = {
+			@UsageExample(syntax = "${cmd}", description = "Shows the counters of the fake webhook"),
+			@UsageExample(syntax = "${cmd} --show 5", description = "Shows the counters and the last 5 posts")
+	})
+	public static class WebhookStatusCommand extends SshCommand {
+
+		@Option(name = "--show", aliases = {"-n" }, metaVar = "COUNT", usage = "Number of recent posts to show")
+		int show;
+
+		@Override
+		public void run() throws Failure {
+			FakeWebhook webhook = FakeWebhook.getInstance();
+			if (webhook == null) {
+				throw new UnloggedFailure(1, "The fake Glip webhook is not running");
+			}
+
+			long received = webhook.getReceived();
+			double minutes = Math.max(1, System.currentTimeMillis() - webhook.getStarted()) / 60000d;
+			stdout.println(String.format("url:          %s", webhook.getUrl()));
+			stdout.println(String.format("received:     %d (%.1f/min)", received, received / minutes));
+			stdout.println(String.format("accepted:     %d", webhook.getAccepted()));
+			stdout.println(String.format("rate limited: %d", webhook.getRateLimited()));
+			stdout.println(String.format("errors:       %d", webhook.getErrors()));
+			stdout.println(String.format("resets:       %d", webhook.getResets()));
+
+			if (show > 0) {
+				List<FakeWebhook.Post> posts = webhook.getRecent();
+				SimpleDateFormat df = new SimpleDateFormat("HH:mm:ss.SSS");
+				for (FakeWebhook.Post post : posts.subList(Math.max(0, posts.size() - show), posts.size())) {
+					stdout.println();
+					stdout.println(String.format("%s %s %s", df.format(post.date),
+							post.status == 0 ? "reset" : post.status, post.token));
+					stdout.println(post.json);
+				}
+			}
+		}
+	}
+
+	@CommandMetaData(name = "load", description = "Asynchronously post a stream of test messages")
+	@UsageExamples(examples = {
+			@UsageExample(syntax = "${cmd} --events 10000 --per-minute 10000", description = "Posts 10,000 messages to the default conversation over one minute"),
+			@UsageExample(syntax = "${cmd} aConversation --events 1000", description = "Posts 1,000 messages to aConversation as fast as possible")
+	})
+	public static class WebhookLoadCommand extends SshCommand {
+
+		@Argument(index = 0, metaVar = "CONVERSATION", usage = "Destination conversation for the messages")
+		String conversation;
+
+		@Option(name = "--events", aliases = {"-n" }, metaVar = "COUNT", usage = "Number of messages to post")
+		int events = 1000;
+
+		@Option(name = "--per-minute", aliases = {"-r" }, metaVar = "RATE", usage = "Messages per minute, 0 for no limit")
+		int perMinute;
+
+		@Override
+		public void run() throws Failure {
+			IRuntimeManager runtimeManager = GitblitContext.getManager(IRuntimeManager.class);
+			Glip.init(runtimeManager);
+			Glip glip = Glip.instance();
+
+			long interval = perMinute > 0 ? TimeUnit.MINUTES.toNanos(1) / perMinute : 0;
+			long start = System.nanoTime();
+			for (int i = 1; i <= events; i++) {
+				if (interval > 0) {
+					long wait = start + (i - 1) * interval - System.nanoTime();
+					if (wait > 0) {
+						LockSupport.parkNanos(wait);
+					}
+				}
+				Payload payload = new Payload()
+					.activity("Load test")
+					.title(String.format("Load test message %d of %d", i, events))
+					.body(String.format("This is load test message **%d**.", i));
+				if (!StringUtils.isEmpty(conversation)) {
+					payload.setConversation(conversation);
+				}
+				glip.sendAsync(payload);
+			}
+			long elapsed = System.nanoTime() - start;
+
+			double minutes = Math.max(1, elapsed) / (double) TimeUnit.MINUTES.toNanos(1);
+			stdout.println(String.format("queued %d messages in %d ms (%.1f/min)",
+					events, TimeUnit.NANOSECONDS.toMillis(elapsed), events / minutes));
+			stdout.println(String.format("queue depth %d, dropped %d, retried %d",
+					glip.getQueueDepth(), glip.getDroppedCount(), glip.getRetryCount()));
+		}
+	}
+
+	@CommandMetaData(name = "stats", description = "Show dispatch statistics")
+	@UsageExamples(examples = {
+			@UsageExample(syntax = "${cmd}", description = "Shows the statistics since Glip was started"),
+			@UsageExample(syntax = "${cmd} --watch --interval 5", description = "Shows the statistics every 5 seconds, latencies cover the last interval"),
+			@UsageExample(syntax = "${cmd} --json", description = "Shows the statistics as JSON")
+	})
+	public static class StatsCommand extends SshCommand {
+
+		@Option(name = "--json", usage = "Output JSON, one object per line when watching")
+		boolean json;
+
+		@Option(name = "--watch", aliases = {"-w" }, usage = "Repeat until interrupted")
+		boolean watch;
+
+		@Option(name = "--interval", aliases = {"-i" }, metaVar = "SECONDS", usage = "Seconds between samples when watching")
+		int interval = 5;
+
+		@Option(name = "--count", aliases = {"-n" }, metaVar = "COUNT", usage = "Number of samples when watching, 0 for no limit")
+		int count;
+
+		@Override
+		public void run() throws Failure {
+			IRuntimeManager runtimeManager = GitblitContext.getManager(IRuntimeManager.class);
+			Glip.init(runtimeManager);
+
+			Gson gson;
+			if (watch) {
+				gson = new GsonBuilder().setDateFormat(DATE_FORMAT).create();
+			} else {
+				gson = new GsonBuilder().setDateFormat(DATE_FORMAT).setPrettyPrinting().create();
+			}
+
+			GlipStats.Sampler sampler = new GlipStats.Sampler(Glip.instance(), watch);
+			for (int i = 1; ; i++) {
+				GlipStats stats = sampler.sample();
+				if (json) {
+					stdout.println(gson.toJson(stats));
+				} else {
+					if (watch) {
+						stdout.println(String.format("--- %s ---", new SimpleDateFormat(DATE_FORMAT).format(stats.date)));
+					}
+					stats.print(stdout);
+					if (watch) {
+						stdout.println();
+					}
+				}
+				stdout.flush();
+
+				if (!watch || (count > 0 && i >= count) || stdout.checkError()) {
+					// done or the client went away
+					break;
+				}
+				try {
+					Thread.sleep(TimeUnit.SECONDS.toMillis(Math.max(1, interval)));
+				} catch (InterruptedException e) {
+					break;
+				}
+			}
+		}
+	}
+
+	static final String DATE_FORMAT = "yyyy-MM-dd'T'HH:mm:ssZ";
+}
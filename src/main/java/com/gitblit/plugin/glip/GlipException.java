@@ -0,0 +1,70 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.glip;
+
+import java.io.IOException;
+
+import org.apache.http.HttpStatus;
+
+/**
+ * Thrown when Glip responds to a post with an unexpected status code.
+ *
+ * @author James Moger
+ *
+ */
+public class GlipException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final int statusCode;
+
+	private final long retryAfter;
+
+	public GlipException(int statusCode, String message) {
+		this(statusCode, message, -1);
+	}
+
+	public GlipException(int statusCode, String message, long retryAfter) {
+		super(String.format("Glip Error (%s): %s", statusCode, message));
+		this.statusCode = statusCode;
+		this.retryAfter = retryAfter;
+	}
+
+	public int getStatusCode() {
+		return statusCode;
+	}
+
+	/**
+	 * Returns the delay requested by Glip with a Retry-After header.
+	 *
+	 * @return the delay in milliseconds or -1 if Glip did not specify one
+	 */
+	public long getRetryAfter() {
+		return retryAfter;
+	}
+
+	/**
+	 * Returns true if posting the same payload again can never succeed, e.g.
+	 * the token is invalid or the payload was rejected.
+	 *
+	 * @return true if the error is permanent
+	 */
+	public boolean isPermanent() {
+		return statusCode >= 400 && statusCode < 500
+				&& statusCode != HttpStatus.SC_REQUEST_TIMEOUT
+				&& statusCode != 429;
+	}
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.glip;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and latency histograms of the message delivery path.
+ *
+ * Outcomes and latencies are recorded in total, by event type and by
+ * conversation.  All updates are lock-free so they can be recorded on the
+ * dispatch workers without contention.
+ *
+ * @author James Moger
+ *
+ */
+public class GlipMetrics {
+
+	/**
+	 * The key of the default conversation.
+	 */
+	public static final String DEFAULT_CONVERSATION = "(default)";
+
+	/**
+	 * Outcome counters and latencies of a group of messages.
+	 */
+	public static class Stats {
+
+		final AtomicLong delivered = new AtomicLong();
+
+		final AtomicLong failed = new AtomicLong();
+
+		final AtomicLong dropped = new AtomicLong();
+
+		final AtomicLong retried = new AtomicLong();
+
+		final LatencyHistogram http = new LatencyHistogram();
+
+		final LatencyHistogram delivery = new LatencyHistogram();
+
+		/**
+		 * Returns the number of messages accepted by Glip.
+		 */
+		public long getDelivered() {
+			return delivered.get();
+		}
+
+		/**
+		 * Returns the number of messages which were given up on.
+		 */
+		public long getFailed() {
+			return failed.get();
+		}
+
+		/**
+		 * Returns the number of messages discarded before they were posted.
+		 */
+		public long getDropped() {
+			return dropped.get();
+		}
+
+		/**
+		 * Returns the number of posts which were retried.
+		 */
+		public long getRetried() {
+			return retried.get();
+		}
+
+		/**
+		 * Returns the round trip times of the posts.
+		 */
+		public LatencyHistogram getHttp() {
+			return http;
+		}
+
+		/**
+		 * Returns the times from creating a message until Glip accepted it.
+		 */
+		public LatencyHistogram getDelivery() {
+			return delivery;
+		}
+	}
+
+	private final LatencyHistogram render = new LatencyHistogram();
+
+	private final LatencyHistogram queueWait = new LatencyHistogram();
+
+	private final Stats total = new Stats();
+
+	private final AtomicInteger inFlight = new AtomicInteger();
+
+	private final Map<EventType, Stats> byEventType;
+
+	private final ConcurrentMap<String, Stats> byConversation = new ConcurrentHashMap<String, Stats>();
+
+	public GlipMetrics() {
+		Map<EventType, Stats> map = new EnumMap<EventType, Stats>(EventType.class);
+		for (EventType type : EventType.values()) {
+			map.put(type, new Stats());
+		}
+		byEventType = Collections.unmodifiableMap(map);
+	}
+
+	/**
+	 * Returns the time spent rendering deferred messages.
+	 */
+	public LatencyHistogram getRender() {
+		return render;
+	}
+
+	/**
+	 * Returns the time messages waited for a dispatch worker.
+	 */
+	public LatencyHistogram getQueueWait() {
+		return queueWait;
+	}
+
+	/**
+	 * Returns the number of posts waiting for a response.
+	 */
+	public int getInFlight() {
+		return inFlight.get();
+	}
+
+	/**
+	 * Returns the stats of all messages.
+	 */
+	public Stats getTotal() {
+		return total;
+	}
+
+	/**
+	 * Returns the stats by event type.
+	 */
+	public Map<EventType, Stats> getByEventType() {
+		return byEventType;
+	}
+
+	/**
+	 * Returns the stats by conversation, sorted by conversation.
+	 */
+	public Map<String, Stats> getByConversation() {
+		return new TreeMap<String, Stats>(byConversation);
+	}
+
+	void onRendered(long nanos) {
+		render.recordNanos(nanos);
+	}
+
+	void onDequeued(long nanos) {
+		queueWait.recordNanos(nanos);
+	}
+
+	void onPosting() {
+		inFlight.incrementAndGet();
+	}
+
+	void onPosted(Payload payload, long nanos) {
+		inFlight.decrementAndGet();
+		for (Stats stats : getStats(payload)) {
+			stats.http.recordNanos(nanos);
+		}
+	}
+
+	void onDelivered(Payload payload) {
+		long nanos = System.nanoTime() - payload.getCreated();
+		for (Stats stats : getStats(payload)) {
+			stats.delivered.incrementAndGet();
+			stats.delivery.recordNanos(nanos);
+		}
+	}
+
+	void onFailed(Payload payload) {
+		for (Stats stats : getStats(payload)) {
+			stats.failed.incrementAndGet();
+		}
+	}
+
+	void onDropped(Payload payload) {
+		for (Stats stats : getStats(payload)) {
+			stats.dropped.incrementAndGet();
+		}
+	}
+
+	void onRetried(Payload payload) {
+		for (Stats stats : getStats(payload)) {
+			stats.retried.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Returns the stats the payload is counted in.
+	 */
+	private Stats [] getStats(Payload payload) {
+		Stats conversation = getStats(payload.getConversation());
+		EventType eventType = payload.getEventType();
+		if (eventType == null) {
+			return new Stats [] { total, conversation };
+		}
+		return new Stats [] { total, byEventType.get(eventType), conversation };
+	}
+
+	private Stats getStats(String conversation) {
+		String key = conversation == null || conversation.isEmpty() ? DEFAULT_CONVERSATION : conversation;
+		Stats stats = byConversation.get(key);
+		if (stats == null) {
+			byConversation.putIfAbsent(key, new Stats());
+			stats = byConversation.get(key);
+		}
+		return stats;
+	}
+}
@@ -15,14 +15,13 @@
  */
 package com.gitblit.plugin.glip;
 import java.io.IOException;
-import java.text.MessageFormat;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 
+import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.revwalk.RevCommit;
-import org.eclipse.jgit.revwalk.RevSort;
 import org.eclipse.jgit.revwalk.RevWalk;
 import org.eclipse.jgit.transport.ReceiveCommand;
 import org.slf4j.Logger;
@@ -31,14 +30,12 @@ import org.slf4j.LoggerFactory;
 import ro.fortsoft.pf4j.Extension;
 
 import com.gitblit.Constants;
-import com.gitblit.Keys;
 import com.gitblit.extensions.ReceiveHook;
 import com.gitblit.git.GitblitReceivePack;
+import com.gitblit.manager.IRepositoryManager;
 import com.gitblit.manager.IRuntimeManager;
-import com.gitblit.models.RepositoryModel;
 import com.gitblit.models.UserModel;
 import com.gitblit.servlet.GitblitContext;
-import com.gitblit.utils.ActivityUtils;
 import com.gitblit.utils.StringUtils;
 
 /**
@@ -56,8 +53,20 @@ public class GlipReceiveHook extends ReceiveHook {
 
 	final Glip glip;
 
+	/**
+	 * The maximum number of commits of a pushed patchset which are cached
+	 * for the ticket hook.
+	 */
+	static final int MAX_PATCHSET_COMMITS = 100;
+
 	enum RefType {
-		BRANCH, TAG
+		BRANCH(EventType.BRANCH), TAG(EventType.TAG);
+
+		final EventType eventType;
+
+		RefType(EventType eventType) {
+			this.eventType = eventType;
+		}
 	}
 
 	public GlipReceiveHook() {
@@ -75,24 +84,30 @@ public class GlipReceiveHook extends ReceiveHook {
 
 	@Override
 	public void onPostReceive(GitblitReceivePack receivePack, Collection<ReceiveCommand> commands) {
-		if (!shallPost(receivePack, commands)) {
+		Route route = route(receivePack);
+		if (!route.isRoutable()) {
+			// nothing is walked or rendered for this push
+			glip.skip(commands.size());
 			return;
 		}
 
-    	IRuntimeManager runtimeManager = GitblitContext.getManager(IRuntimeManager.class);
+		cachePatchsets(receivePack, commands);
+
+    	GlipConfig config = glip.getConfig();
+		List<Payload> payloads = new ArrayList<Payload>();
 		try {
 			for (ReceiveCommand cmd : commands) {
 				RefType rType = null;
 				if (cmd.getRefName().startsWith(Constants.R_TAGS)) {
 					rType = RefType.TAG;
-			    	boolean shallPostTag = runtimeManager.getSettings().getBoolean(Plugin.SETTING_POST_TAGS, true);
-			    	if (!shallPostTag) {
+			    	if (!config.isPostTags()) {
+			    		glip.skip(1);
 			    		continue;
 			    	}
 				} else if (cmd.getRefName().startsWith(Constants.R_HEADS)) {
 					rType = RefType.BRANCH;
-			    	boolean shallPostBranch = runtimeManager.getSettings().getBoolean(Plugin.SETTING_POST_BRANCHES, true);
-			    	if (!shallPostBranch) {
+			    	if (!config.isPostBranches()) {
+			    		glip.skip(1);
 			    		continue;
 			    	}
 				} else {
@@ -100,100 +115,210 @@ public class GlipReceiveHook extends ReceiveHook {
 					continue;
 				}
 
+				if (!route.accepts(cmd.getRefName())) {
+					// filtered, e.g. CI refs
+					glip.skip(1);
+					continue;
+				}
+
 				switch (cmd.getType()) {
 				case CREATE:
-					sendCreate(receivePack, cmd, rType);
+					payloads.add(prepareCreate(receivePack, route, cmd, rType));
 					break;
 				case UPDATE:
-					sendUpdate(receivePack, cmd, rType, true);
+					payloads.add(prepareUpdate(receivePack, route, cmd, rType, true));
 					break;
 				case UPDATE_NONFASTFORWARD:
-					sendUpdate(receivePack, cmd, rType, false);
+					payloads.add(prepareUpdate(receivePack, route, cmd, rType, false));
 					break;
 				case DELETE:
-					sendDelete(receivePack, cmd, rType);
+					payloads.add(prepareDelete(receivePack, route, cmd, rType));
 					break;
 				}
 			}
 		} catch (IOException e) {
 			log.error("Failed to notify Glip!", e);
 		}
+
+		// submit the whole push at once
+		glip.sendAll(payloads);
+	}
+
+	/**
+	 * Caches the commits of the patchsets in this push while the receive
+	 * pack's walk is at hand, so that the ticket hook can render the
+	 * patchset from the cache rather than walking the repository again.
+	 * The commits are followed by first parent from the new tip back to the
+	 * previous tip, a merge or an already cached commit.
+	 *
+	 * @param receivePack
+	 * @param commands
+	 */
+	protected void cachePatchsets(GitblitReceivePack receivePack, Collection<ReceiveCommand> commands) {
+		CommitCache cache = glip.getCommitCache();
+		if (cache.maxSize == 0) {
+			return;
+		}
+		String repoName = receivePack.getRepositoryModel().name;
+		RevWalk walk = receivePack.getRevWalk();
+		for (ReceiveCommand cmd : commands) {
+			String refName = cmd.getRefName();
+			if (ReceiveCommand.Type.DELETE == cmd.getType()
+					|| !(refName.startsWith(Constants.R_FOR) || refName.startsWith(Constants.R_TICKETS_PATCHSETS))) {
+				continue;
+			}
+			try {
+				ObjectId id = cmd.getNewId();
+				for (int i = 0; i < MAX_PATCHSET_COMMITS; i++) {
+					if (id.equals(cmd.getOldId()) || cache.get(repoName, id.getName()) != null) {
+						break;
+					}
+					RevCommit c = walk.parseCommit(id);
+					walk.parseBody(c);
+					cache.put(repoName, c);
+					if (c.getParentCount() != 1) {
+						break;
+					}
+					id = c.getParent(0);
+				}
+			} catch (IOException e) {
+				log.error("failed to cache the commits of " + refName, e);
+			}
+		}
 	}
 
 	/**
-	 * Determine if the ref changes for this repository should be posted to Glip.
+	 * Determine where the ref changes for this repository should be posted.
 	 *
 	 * @param receivePack
-	 * @return true if the ref changes should be posted
+	 * @return the route of the ref changes
 	 */
-	protected boolean shallPost(GitblitReceivePack receivePack, Collection<ReceiveCommand> commands) {
-		boolean shallPostRepo = glip.shallPost(receivePack.getRepositoryModel());
-		return shallPostRepo;
+	protected Route route(GitblitReceivePack receivePack) {
+		return glip.route(receivePack.getRepositoryModel());
 	}
 
 	/**
-	 * Sends a Glip message when a branch or a tag is created.
+	 * Prepares a Glip message for a created branch or tag.
 	 *
 	 * @param receivePack
+	 * @param route
 	 * @param cmd
 	 * @param rType
+	 * @return the payload
 	 */
-	protected void sendCreate(GitblitReceivePack receivePack, ReceiveCommand cmd, RefType rType) throws IOException {
-		UserModel user = receivePack.getUserModel();
-		RepositoryModel repo = receivePack.getRepositoryModel();
-		String shortRef = Repository.shortenRefName(cmd.getRefName());
-		String repoUrl = getUrl(repo.name, null, null);
-		String logUrl = getUrl(repo.name, shortRef, null);
+	protected Payload prepareCreate(GitblitReceivePack receivePack, Route route, ReceiveCommand cmd, RefType rType) throws IOException {
+		RefChange payload = new RefChange(this, receivePack.getRepositoryModel().name, receivePack.getUserModel(), cmd, rType, false);
+		payload.event(rType.eventType, "created");
 
+    	route.apply(payload);
+    	return payload;
+    }
+
+	/**
+	 * Renders the Glip message for a created branch or tag.
+	 *
+	 * @param change
+	 */
+	protected void renderCreate(RefChange change) {
+		String shortRef = Repository.shortenRefName(change.refName);
+		LinkBuilder links = glip.getConfig().getLinks();
+		String repoUrl = links.appendSummary(new StringBuilder(), change.repositoryName).toString();
+		String logUrl = links.appendLog(new StringBuilder(), change.repositoryName, shortRef).toString();
+
+		UserCache.User user = getUser(change);
 		String activity = String.format("%s has pushed to %s",
-				user.getDisplayName(), StringUtils.stripDotGit(repo.name));
+				user.getDisplayName(), StringUtils.stripDotGit(change.repositoryName));
 
 		String msg = String.format("**%s** has created %s [%s](%s) in [%s](%s)", user.getDisplayName(),
-				rType.name().toLowerCase(), shortRef, logUrl, StringUtils.stripDotGit(repo.name), repoUrl);
-
-    	Payload payload = new Payload()
-    		.icon(getIconUrl(user))
-    		.activity(activity)
-    		.body(msg);
+				change.refType.name().toLowerCase(), shortRef, logUrl, StringUtils.stripDotGit(change.repositoryName), repoUrl);
 
-    	glip.setConversation(repo, payload);
-    	glip.sendAsync(payload);
-    }
+		change
+			.icon(getIconUrl(user))
+			.activity(activity)
+			.body(msg);
+	}
 
 	/**
-	 * Sends a Glip message when a branch or a tag has been updated.
+	 * Prepares a Glip message for an updated branch or tag.
 	 *
 	 * @param receivePack
+	 * @param route
 	 * @param cmd
 	 * @param rType
 	 * @param isFF
+	 * @return the payload
 	 */
-	protected void sendUpdate(GitblitReceivePack receivePack, ReceiveCommand cmd, RefType rType, boolean isFF) throws IOException {
-		UserModel user = receivePack.getUserModel();
-		RepositoryModel repo = receivePack.getRepositoryModel();
-		String shortRef = Repository.shortenRefName(cmd.getRefName());
-		String repoUrl = getUrl(repo.name, null, null);
+	protected Payload prepareUpdate(GitblitReceivePack receivePack, Route route, ReceiveCommand cmd, RefType rType, boolean isFF) throws IOException {
+		String summary;
+		switch (rType) {
+		case TAG:
+			summary = "moved";
+			break;
+		default:
+			summary = isFF ? "pushed to" : "rewrote";
+			break;
+		}
+
+		RefChange payload = new RefChange(this, receivePack.getRepositoryModel().name, receivePack.getUserModel(), cmd, rType, isFF);
+		payload.event(rType.eventType, summary);
 
-		String activity = String.format("%s has pushed to %s", user.getDisplayName(), StringUtils.stripDotGit(repo.name));
+    	route.apply(payload);
+    	return payload;
+	}
+
+	/**
+	 * Renders the Glip message for an updated branch or tag.  The commits of
+	 * a fast-forward branch update are read from the repository.
+	 *
+	 * @param change
+	 * @throws IOException
+	 */
+	protected void renderUpdate(RefChange change) throws IOException {
+		if (change.refType == RefType.BRANCH && change.fastForward) {
+			IRepositoryManager repositoryManager = GitblitContext.getManager(IRepositoryManager.class);
+			try (Repository db = repositoryManager.getRepository(change.repositoryName)) {
+				renderUpdate(change, db);
+			}
+		} else {
+			renderUpdate(change, null);
+		}
+	}
 
-		List<RevCommit> commits = null;
+	/**
+	 * Renders the Glip message for an updated branch or tag.
+	 *
+	 * @param change
+	 * @param db
+	 *            the repository, required for fast-forward branch updates
+	 */
+	protected void renderUpdate(RefChange change, Repository db) {
+		String repoName = change.repositoryName;
+		String shortRef = Repository.shortenRefName(change.refName);
+		LinkBuilder links = glip.getConfig().getLinks();
+		String repoUrl = links.appendSummary(new StringBuilder(), repoName).toString();
+
+		UserCache.User user = getUser(change);
+		String activity = String.format("%s has pushed to %s", user.getDisplayName(), StringUtils.stripDotGit(repoName));
+
+		int maxCommits = 5;
+		CommitList commits = null;
 		String action;
 		String url;
-		switch (rType) {
+		switch (change.refType) {
 		case TAG:
 			// commit link
-			url = getUrl(repo.name, null, shortRef);
+			url = links.appendCommit(new StringBuilder(), repoName, shortRef).toString();
 			action = "**MOVED** tag";
 			break;
 		default:
 			// log link
-			url = getUrl(repo.name, shortRef, null);
-			if (isFF) {
-				commits = getCommits(receivePack, cmd.getOldId().name(), cmd.getNewId().name());
-				if (commits.size() == 1) {
+			url = links.appendLog(new StringBuilder(), repoName, shortRef).toString();
+			if (change.fastForward) {
+				commits = getCommits(db, ObjectId.fromString(change.oldId), ObjectId.fromString(change.newId), maxCommits);
+				if (commits.total == 1 && !commits.capped) {
 					action = "pushed 1 commit to";
 				} else {
-					action = String.format("pushed %d commits to", commits.size());
+					action = String.format("pushed %s commits to", commits.format(commits.total));
 				}
 			} else {
 				action = "**REWRITTEN**";
@@ -203,93 +328,97 @@ public class GlipReceiveHook extends ReceiveHook {
 
 		StringBuilder sb = new StringBuilder();
 		String msg = String.format("**%s** has %s [%s](%s) in [%s](%s)",
-				user.getDisplayName(), action, shortRef, url, StringUtils.stripDotGit(repo.name), repoUrl);
+				user.getDisplayName(), action, shortRef, url, StringUtils.stripDotGit(repoName), repoUrl);
 		sb.append(msg);
 
 		if (commits != null) {
 			// abbreviated commit list
-			int shortIdLen = receivePack.getGitblit().getSettings().getInteger(Keys.web.shortCommitIdLength, 6);
-			int maxCommits = 5;
+			int shortIdLen = glip.getConfig().getShortCommitIdLength();
+			CommitCache cache = glip.getCommitCache();
 			sb.append("\n\n");
-			for (int i = 0; i < Math.min(maxCommits, commits.size()); i++) {
-				RevCommit commit = commits.get(i);
-				String username = "";
-				String email = "";
-				if (commit.getAuthorIdent().getEmailAddress() != null) {
-					username = commit.getAuthorIdent().getName();
-					email = commit.getAuthorIdent().getEmailAddress().toLowerCase();
-					if (StringUtils.isEmpty(username)) {
-						username = email;
-					}
-				} else {
-					username = commit.getAuthorIdent().getName();
-					email = username.toLowerCase();
-				}
-//				String gravatarUrl = ActivityUtils.getGravatarThumbnailUrl(email, 16);
-				String commitUrl = getUrl(repo.name, null, commit.getName());
-				String shortId = commit.getName().substring(0, shortIdLen);
-				String shortMessage = StringUtils.escapeForHtml(StringUtils.trimString(commit.getShortMessage(), Constants.LEN_SHORTLOG), false);
-//				String row = String.format("|![%s](%s)|[%s](%s)|%s|\n",
-//						username, gravatarUrl, shortId, commitUrl, shortMessage);
-				String row = String.format("|%s|[%s](%s)|%s|\n",
-						username, shortId, commitUrl, shortMessage);
-				sb.append(row);
+			for (RevCommit c : commits.commits) {
+				// cached for later renders of the same commits, e.g. a ticket branch
+				CommitCache.Entry commit = cache.put(repoName, c);
+				String shortMessage = StringUtils.escapeForHtml(commit.shortMessage, false);
+				sb.append('|').append(commit.author).append("|[").append(commit.getShortId(shortIdLen)).append("](");
+				links.appendCommit(sb, repoName, commit.id);
+				sb.append(")|").append(shortMessage).append("|\n");
 			}
 			sb.append("\n");
 
 			// compare link
-			if (commits.size() > 1) {
-				String compareUrl = getUrl(repo.name, cmd.getOldId().getName(), cmd.getNewId().getName());
+			if (commits.total > 1) {
+				String compareUrl = links.appendCompare(new StringBuilder(), repoName, change.oldId, change.newId).toString();
 				String compareText;
-				if (commits.size() > maxCommits) {
-					int diff = commits.size() - maxCommits;
-					if (diff == 1) {
+				if (commits.total > maxCommits) {
+					int diff = commits.total - maxCommits;
+					if (diff == 1 && !commits.capped) {
 						compareText = "1 more commit";
 					} else {
-						compareText = String.format("%d more commits", diff);
+						compareText = String.format("%s more commits", commits.format(diff));
 					}
 				} else {
-					compareText = String.format("view comparison of these %s commits", commits.size());
+					compareText = String.format("view comparison of these %s commits", commits.total);
 				}
 				sb.append(String.format("[%s](%s)", compareText, compareUrl));
 			}
 		}
 
-    	Payload payload = new Payload()
-    		.icon(getIconUrl(user))
-    		.activity(activity)
-    		.body(sb.toString());
-
-    	glip.setConversation(repo, payload);
-    	glip.sendAsync(payload);
+		change
+			.icon(getIconUrl(user))
+			.activity(activity)
+			.body(sb.toString());
 	}
 
 	/**
-	 * Sends a Glip message when a branch or a tag is deleted.
+	 * Prepares a Glip message for a deleted branch or tag.
 	 *
 	 * @param receivePack
+	 * @param route
 	 * @param cmd
 	 * @param rType
+	 * @return the payload
 	 */
-	protected void sendDelete(GitblitReceivePack receivePack, ReceiveCommand cmd, RefType rType) throws IOException {
-		UserModel user = receivePack.getUserModel();
-		RepositoryModel repo = receivePack.getRepositoryModel();
-		String shortRef = Repository.shortenRefName(cmd.getRefName());
-		String repoUrl = getUrl(repo.name, null, null);
+	protected Payload prepareDelete(GitblitReceivePack receivePack, Route route, ReceiveCommand cmd, RefType rType) throws IOException {
+		RefChange payload = new RefChange(this, receivePack.getRepositoryModel().name, receivePack.getUserModel(), cmd, rType, false);
+		payload.event(rType.eventType, "deleted");
+
+    	route.apply(payload);
+    	return payload;
+	}
 
+	/**
+	 * Renders the Glip message for a deleted branch or tag.
+	 *
+	 * @param change
+	 */
+	protected void renderDelete(RefChange change) {
+		String shortRef = Repository.shortenRefName(change.refName);
+		String repoUrl = glip.getConfig().getLinks().appendSummary(new StringBuilder(), change.repositoryName).toString();
+
+		UserCache.User user = getUser(change);
 		String activity = String.format("%s has pushed to %s",
-				user.getDisplayName(), StringUtils.stripDotGit(repo.name));
+				user.getDisplayName(), StringUtils.stripDotGit(change.repositoryName));
 
 		String msg = String.format("**%s** has deleted %s **%s** from [%s](%s)",
-				user.getDisplayName(), rType.name().toLowerCase(), shortRef, StringUtils.stripDotGit(repo.name), repoUrl);
+				user.getDisplayName(), change.refType.name().toLowerCase(), shortRef,
+				StringUtils.stripDotGit(change.repositoryName), repoUrl);
 
-    	Payload payload = new Payload()
-    		.icon(getIconUrl(user))
-    		.activity(activity)
-    		.body(msg);
+		change
+			.icon(getIconUrl(user))
+			.activity(activity)
+			.body(msg);
+	}
 
-    	glip.setConversation(repo, payload);
-    	glip.sendAsync(payload);
+	/**
+	 * Returns the pusher of the ref change.  The pusher is current, so the
+	 * cached user is refreshed if the display name or e-mail address changed.
+	 *
+	 * @param change
+	 * @return the user
+	 */
+	protected UserCache.User getUser(RefChange change) {
+		return glip.getUserCache().update(change.username, change.displayName, change.emailAddress);
 	}
 
 	/**
@@ -299,71 +428,97 @@ public class GlipReceiveHook extends ReceiveHook {
 	 * @param user
 	 * @return an url
 	 */
-	protected String getIconUrl(UserModel user) {
-		IRuntimeManager runtimeManager = GitblitContext.getManager(IRuntimeManager.class);
-		String iconUrl = runtimeManager.getSettings().getString(Plugin.SETTING_GIT_ICON, null);
-		if (StringUtils.isEmpty(iconUrl) && !StringUtils.isEmpty(user.emailAddress)) {
-			iconUrl = ActivityUtils.getGravatarThumbnailUrl(user.emailAddress, 48);
+	protected String getIconUrl(UserCache.User user) {
+		String iconUrl = glip.getConfig().getGitIcon();
+		if (StringUtils.isEmpty(iconUrl)) {
+			iconUrl = user.getIconUrl();
 		}
 		return iconUrl;
 	}
 
     /**
-     * Returns a link appropriate for the push.
-     *
-     * If both new and old ids are null, the summary page link is returned.
+     * Returns the first commits of the pushed range and the size of the range.
      *
-     * @param repo
-     * @param oldId
-     * @param newId
-     * @return a link
+     * @param db
+     * @param baseId
+     * @param tipId
+     * @param limit
+     * @return the commits
      */
-    protected String getUrl(String repo, String oldId, String newId) {
-    	IRuntimeManager runtimeManager = GitblitContext.getManager(IRuntimeManager.class);
-		String canonicalUrl = runtimeManager.getSettings().getString(Keys.web.canonicalUrl, "https://localhost:8443");
-
-		if (oldId == null && newId != null) {
-			// create
-			final String hrefPattern = "{0}/commit?r={1}&h={2}";
-			return MessageFormat.format(hrefPattern, canonicalUrl, repo, newId);
-		} else if (oldId != null && newId == null) {
-			// log
-			final String hrefPattern = "{0}/log?r={1}&h={2}";
-			return MessageFormat.format(hrefPattern, canonicalUrl, repo, oldId);
-		} else if (oldId != null && newId != null) {
-			// update/compare
-			final String hrefPattern = "{0}/compare?r={1}&h={2}..{3}";
-			return MessageFormat.format(hrefPattern, canonicalUrl, repo, oldId, newId);
-		} else if (oldId == null && newId == null) {
-			// summary page
-			final String hrefPattern = "{0}/summary?r={1}";
-			return MessageFormat.format(hrefPattern, canonicalUrl, repo);
-		}
-
-		return null;
-    }
-
-    private List<RevCommit> getCommits(GitblitReceivePack receivePack, String baseId, String tipId) {
-    	List<RevCommit> list = new ArrayList<RevCommit>();
-		try (RevWalk walk = receivePack.getRevWalk()) {
-			walk.reset();
-			walk.sort(RevSort.TOPO);
-			RevCommit tip = walk.parseCommit(receivePack.getRepository().resolve(tipId));
-			RevCommit base = walk.parseCommit(receivePack.getRepository().resolve(baseId));
-			walk.markStart(tip);
-			walk.markUninteresting(base);
-			for (;;) {
-				RevCommit c = walk.next();
-				if (c == null) {
-					break;
-				}
-				list.add(c);
-			}
+    protected CommitList getCommits(Repository db, ObjectId baseId, ObjectId tipId, int limit) {
+		try (RevWalk walk = new RevWalk(db)) {
+			return CommitList.walk(walk, baseId, tipId, limit);
 		} catch (IOException e) {
 			// Should never happen, the core receive process would have
 			// identified the missing object earlier before we got control.
 			log.error("failed to get commits", e);
 		}
-		return list;
+		return new CommitList(new ArrayList<RevCommit>(), 0);
+	}
+
+	/**
+	 * The inputs of a ref change.  They are copied from the receive pack on
+	 * the push thread, so that the message can be rendered later by the
+	 * dispatch worker, or after a restart if the message was recovered from
+	 * the outbox.
+	 */
+	static class RefChange extends DeferredPayload {
+
+		final String repositoryName;
+
+		final String refName;
+
+		final RefType refType;
+
+		final boolean fastForward;
+
+		final ReceiveCommand.Type type;
+
+		final String oldId;
+
+		final String newId;
+
+		final String username;
+
+		final String displayName;
+
+		final String emailAddress;
+
+		private transient GlipReceiveHook hook;
+
+		RefChange(GlipReceiveHook hook, String repositoryName, UserModel user, ReceiveCommand cmd, RefType refType, boolean fastForward) {
+			this.hook = hook;
+			this.repositoryName = repositoryName;
+			this.refName = cmd.getRefName();
+			this.refType = refType;
+			this.fastForward = fastForward;
+			this.type = cmd.getType();
+			this.oldId = cmd.getOldId().getName();
+			this.newId = cmd.getNewId().getName();
+			this.username = user.username;
+			this.displayName = user.getDisplayName();
+			this.emailAddress = user.emailAddress;
+			repository(repositoryName);
+			author(username, null);
+		}
+
+		@Override
+		protected void renderPayload() throws IOException {
+			if (hook == null) {
+				// recovered from the outbox
+				hook = new GlipReceiveHook();
+			}
+			switch (type) {
+			case CREATE:
+				hook.renderCreate(this);
+				break;
+			case DELETE:
+				hook.renderDelete(this);
+				break;
+			default:
+				hook.renderUpdate(this);
+				break;
+			}
+		}
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.glip;
+
+import java.io.PrintWriter;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.http.pool.PoolStats;
+
+/**
+ * A point-in-time view of the dispatch statistics, as shown by the stats
+ * command.  The fields are serialized as is for JSON output.  Latencies are
+ * in milliseconds.
+ *
+ * @author James Moger
+ *
+ */
+class GlipStats {
+
+	static class Dispatch {
+		String mode;
+		int workers;
+		int activeWorkers;
+		double utilization;
+		int queueDepth;
+		int queueCapacity;
+		int lanes;
+		int inFlight;
+		int outboxPending;
+		int digestPending;
+	}
+
+	static class Outcomes {
+		long delivered;
+		long failed;
+		long retried;
+		long dropped;
+		long coalesced;
+		long digested;
+		long skipped;
+		long rejected;
+	}
+
+	static class Connections {
+		int leased;
+		int available;
+		int pending;
+		int max;
+		long opened;
+		long requests;
+		double reuse;
+	}
+
+	static class Latency {
+		long count;
+		double p50;
+		double p95;
+		double p99;
+		double max;
+	}
+
+	static class Group {
+		long delivered;
+		long failed;
+		long retried;
+		long dropped;
+		Latency http;
+		Latency delivery;
+	}
+
+	Date date;
+	Dispatch dispatch;
+	Outcomes outcomes;
+	Connections connections;
+	Map<String, Latency> latency;
+	Map<String, Group> eventTypes;
+	Map<String, Group> conversations;
+
+	/**
+	 * Collects statistics from Glip.  Once a sample has been taken, the
+	 * latencies of the next sample only cover the time since the previous
+	 * sample.
+	 */
+	static class Sampler {
+
+		final Glip glip;
+
+		final boolean interval;
+
+		private final Map<String, LatencyHistogram.Snapshot> previous = new HashMap<String, LatencyHistogram.Snapshot>();
+
+		/**
+		 * @param glip
+		 * @param interval
+		 *            true to report the latencies of the interval between
+		 *            samples rather than since Glip was started
+		 */
+		Sampler(Glip glip, boolean interval) {
+			this.glip = glip;
+			this.interval = interval;
+		}
+
+		GlipStats sample() {
+			GlipMetrics metrics = glip.getMetrics();
+			GlipStats stats = new GlipStats();
+			stats.date = new Date();
+
+			Dispatch dispatch = new Dispatch();
+			dispatch.mode = glip.getDispatchMode().name().toLowerCase();
+			dispatch.workers = glip.getWorkerCount();
+			dispatch.activeWorkers = glip.getActiveWorkerCount();
+			dispatch.utilization = dispatch.workers == 0 ? 0 : dispatch.activeWorkers / (double) dispatch.workers;
+			dispatch.queueDepth = glip.getQueueDepth();
+			dispatch.queueCapacity = glip.getQueueCapacity();
+			dispatch.lanes = glip.getLaneCount();
+			dispatch.inFlight = metrics.getInFlight();
+			dispatch.outboxPending = glip.getOutboxPendingCount();
+			dispatch.digestPending = glip.getDigestPendingCount();
+			stats.dispatch = dispatch;
+
+			GlipMetrics.Stats total = metrics.getTotal();
+			Outcomes outcomes = new Outcomes();
+			outcomes.delivered = total.getDelivered();
+			outcomes.failed = total.getFailed();
+			outcomes.retried = total.getRetried();
+			outcomes.dropped = total.getDropped();
+			outcomes.coalesced = glip.getCoalescedCount();
+			outcomes.digested = glip.getDigestedCount();
+			outcomes.skipped = glip.getSkippedCount();
+			outcomes.rejected = glip.getRejectedCount();
+			stats.outcomes = outcomes;
+
+			Connections connections = new Connections();
+			PoolStats pool = glip.getConnectionStats();
+			if (pool != null) {
+				connections.leased = pool.getLeased();
+				connections.available = pool.getAvailable();
+				connections.pending = pool.getPending();
+				connections.max = pool.getMax();
+			}
+			connections.opened = glip.getConnectionCount();
+			connections.requests = total.getHttp().snapshot().getCount();
+			connections.reuse = connections.requests == 0 ? 0
+					: Math.max(0, 1 - connections.opened / (double) connections.requests);
+			stats.connections = connections;
+
+			stats.latency = new LinkedHashMap<String, Latency>();
+			stats.latency.put("render", latency("render", metrics.getRender()));
+			stats.latency.put("queueWait", latency("queueWait", metrics.getQueueWait()));
+			stats.latency.put("http", latency("http", total.getHttp()));
+			stats.latency.put("delivery", latency("delivery", total.getDelivery()));
+
+			stats.eventTypes = new LinkedHashMap<String, Group>();
+			for (Map.Entry<EventType, GlipMetrics.Stats> entry : metrics.getByEventType().entrySet()) {
+				String name = entry.getKey().name().toLowerCase();
+				stats.eventTypes.put(name, group("type:" + name, entry.getValue()));
+			}
+
+			stats.conversations = new LinkedHashMap<String, Group>();
+			for (Map.Entry<String, GlipMetrics.Stats> entry : metrics.getByConversation().entrySet()) {
+				stats.conversations.put(entry.getKey(), group("conversation:" + entry.getKey(), entry.getValue()));
+			}
+			return stats;
+		}
+
+		private Group group(String key, GlipMetrics.Stats stats) {
+			Group group = new Group();
+			group.delivered = stats.getDelivered();
+			group.failed = stats.getFailed();
+			group.retried = stats.getRetried();
+			group.dropped = stats.getDropped();
+			group.http = latency(key + ":http", stats.getHttp());
+			group.delivery = latency(key + ":delivery", stats.getDelivery());
+			return group;
+		}
+
+		private Latency latency(String key, LatencyHistogram histogram) {
+			LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+			LatencyHistogram.Snapshot reported = snapshot;
+			if (interval) {
+				LatencyHistogram.Snapshot earlier = previous.put(key, snapshot);
+				if (earlier != null) {
+					reported = snapshot.since(earlier);
+				}
+			}
+			Latency latency = new Latency();
+			latency.count = reported.getCount();
+			latency.p50 = millis(reported.getPercentile(50));
+			latency.p95 = millis(reported.getPercentile(95));
+			latency.p99 = millis(reported.getPercentile(99));
+			latency.max = millis(reported.getMax());
+			return latency;
+		}
+
+		private static double millis(long micros) {
+			return micros / 1000d;
+		}
+	}
+
+	/**
+	 * Prints the statistics as text.
+	 *
+	 * @param out
+	 */
+	void print(PrintWriter out) {
+		out.println(String.format("dispatch     %d/%d %s workers busy (%.0f%%), %d/%d queued in %d lanes, %d in flight, %d in outbox, %d awaiting digest",
+				dispatch.activeWorkers, dispatch.workers, dispatch.mode, dispatch.utilization * 100,
+				dispatch.queueDepth, dispatch.queueCapacity, dispatch.lanes, dispatch.inFlight, dispatch.outboxPending,
+				dispatch.digestPending));
+		out.println(String.format("outcomes     %d delivered, %d failed, %d retried, %d dropped, %d coalesced, %d digested, %d rejected, %d skipped",
+				outcomes.delivered, outcomes.failed, outcomes.retried, outcomes.dropped,
+				outcomes.coalesced, outcomes.digested, outcomes.rejected, outcomes.skipped));
+		out.println(String.format("connections  %d leased, %d idle, %d pending of %d, %d opened for %d requests (%.1f%% reused)",
+				connections.leased, connections.available, connections.pending, connections.max,
+				connections.opened, connections.requests, connections.reuse * 100));
+
+		out.println();
+		out.println(String.format("%-24s %10s %10s %10s %10s %10s", "latency (ms)", "count", "p50", "p95", "p99", "max"));
+		for (Map.Entry<String, Latency> entry : latency.entrySet()) {
+			print(out, entry.getKey(), entry.getValue());
+		}
+
+		printGroups(out, "event type (http ms)", eventTypes);
+		printGroups(out, "conversation (http ms)", conversations);
+	}
+
+	private void printGroups(PrintWriter out, String title, Map<String, Group> groups) {
+		out.println();
+		out.println(String.format("%-24s %10s %10s %10s %10s %10s %10s %10s %10s",
+				title, "count", "p50", "p95", "p99", "delivered", "failed", "retried", "dropped"));
+		for (Map.Entry<String, Group> entry : groups.entrySet()) {
+			Group group = entry.getValue();
+			Latency http = group.http;
+			out.println(String.format("%-24s %10d %10.1f %10.1f %10.1f %10d %10d %10d %10d",
+					entry.getKey(), http.count, http.p50, http.p95, http.p99,
+					group.delivered, group.failed, group.retried, group.dropped));
+		}
+	}
+
+	private static void print(PrintWriter out, String name, Latency latency) {
+		out.println(String.format("%-24s %10d %10.1f %10.1f %10.1f %10.1f",
+				name, latency.count, latency.p50, latency.p95, latency.p99, latency.max));
+	}
+}
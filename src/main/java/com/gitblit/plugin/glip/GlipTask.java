@@ -0,0 +1,122 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.glip;
+
+/**
+ * Delivers a payload to Glip on a dispatch worker.  Tasks may be chained so
+ * that the payloads of a batch are delivered in order by a single worker.
+ *
+ * @author James Moger
+ *
+ */
+class GlipTask implements Runnable {
+
+	final Glip glip;
+	final Payload payload;
+	long journalId;
+	int attempts;
+	long queued = System.nanoTime();
+	GlipTask next;
+
+	GlipTask(Glip glip, Payload payload, long journalId) {
+		this.glip = glip;
+		this.payload = payload;
+		this.journalId = journalId;
+	}
+
+	String getConversation() {
+		return payload.getConversation();
+	}
+
+	/**
+	 * Returns true if other tasks are delivered after this task.  Chained
+	 * tasks are not merged so that their order is preserved.
+	 */
+	boolean isChained() {
+		return next != null;
+	}
+
+	/**
+	 * Returns the key of the dispatch lane of this task.  Tasks for the same
+	 * conversation are delivered in order.
+	 */
+	String getLane() {
+		String conversation = getConversation();
+		return conversation == null ? "" : conversation;
+	}
+
+	boolean isSameConversation(GlipTask task) {
+		String a = getConversation();
+		String b = task.getConversation();
+		return a == null ? b == null : a.equals(b);
+	}
+
+	/**
+	 * Returns a new task which delivers this task's payload merged with the
+	 * payload of the specified task.
+	 *
+	 * @param task
+	 * @return a merged task
+	 */
+	GlipTask merge(GlipTask task) {
+		// journal the merged payload before releasing the originals
+		GlipTask merged = glip.newTask(payload.merge(task.payload));
+		discard();
+		task.discard();
+		return merged;
+	}
+
+	/**
+	 * Discards this task, and the tasks chained to it, because there is no
+	 * room for it.
+	 */
+	void drop() {
+		for (GlipTask task = this; task != null; task = task.next) {
+			glip.getMetrics().onDropped(task.payload);
+			task.discard();
+		}
+	}
+
+	/**
+	 * Removes this task from the outbox without delivering it.
+	 */
+	void discard() {
+		glip.acknowledge(journalId);
+	}
+
+	@Override
+	public void run() {
+		deliver();
+	}
+
+	/**
+	 * Delivers this task and the tasks chained to it.
+	 *
+	 * @return true if all tasks are done, false if a task was deferred and
+	 *         will be resubmitted
+	 */
+	boolean deliver() {
+		GlipTask task = this;
+		while (glip.deliver(task)) {
+			if (task.next == null) {
+				return true;
+			}
+			task = task.next;
+			task.queued = System.nanoTime();
+		}
+		return false;
+	}
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.glip;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates named daemon threads so that Glip threads are easy to identify in a
+ * thread dump and never block Gitblit from shutting down.
+ *
+ * @author James Moger
+ *
+ */
+class GlipThreadFactory implements ThreadFactory {
+
+	private final String prefix;
+
+	private final AtomicInteger counter = new AtomicInteger();
+
+	GlipThreadFactory(String name) {
+		this.prefix = "glip-" + name + "-";
+	}
+
+	/**
+	 * Returns a factory of named virtual threads.  The plugin is compiled for
+	 * Java 7 so the Java 21 API is looked up reflectively.
+	 *
+	 * @param name
+	 * @return a virtual thread factory or null if the runtime does not
+	 *         support virtual threads
+	 */
+	static ThreadFactory newVirtualThreadFactory(String name) {
+		try {
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			Method setName = builderClass.getMethod("name", String.class, long.class);
+			Method newFactory = builderClass.getMethod("factory");
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			builder = setName.invoke(builder, "glip-" + name + "-virtual-", 1L);
+			return (ThreadFactory) newFactory.invoke(builder);
+		} catch (Exception e) {
+			// not available or a preview feature on this runtime
+			return null;
+		}
+	}
+
+	@Override
+	public Thread newThread(Runnable r) {
+		Thread thread = new Thread(r, prefix + counter.incrementAndGet());
+		thread.setDaemon(true);
+		return thread;
+	}
+}
@@ -15,9 +15,6 @@
  */
 package com.gitblit.plugin.glip;
 import java.io.IOException;
-import java.text.DateFormat;
-import java.text.MessageFormat;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -36,22 +33,15 @@ import org.slf4j.LoggerFactory;
 
 import ro.fortsoft.pf4j.Extension;
 
-import com.gitblit.Constants;
-import com.gitblit.IStoredSettings;
-import com.gitblit.Keys;
 import com.gitblit.extensions.TicketHook;
 import com.gitblit.manager.IGitblit;
 import com.gitblit.manager.IRepositoryManager;
 import com.gitblit.manager.IRuntimeManager;
-import com.gitblit.manager.IUserManager;
 import com.gitblit.models.RepositoryModel;
 import com.gitblit.models.TicketModel;
 import com.gitblit.models.TicketModel.Change;
 import com.gitblit.models.TicketModel.Patchset;
-import com.gitblit.models.TicketModel.Review;
-import com.gitblit.models.UserModel;
 import com.gitblit.servlet.GitblitContext;
-import com.gitblit.utils.ActivityUtils;
 import com.gitblit.utils.StringUtils;
 
 /**
@@ -69,188 +59,167 @@ public class GlipTicketHook extends TicketHook {
 
 	final Glip glip;
 
-	final IStoredSettings settings;
-
 	public GlipTicketHook() {
 		super();
 
 		IRuntimeManager runtimeManager = GitblitContext.getManager(IRuntimeManager.class);
 		Glip.init(runtimeManager);
     	glip = Glip.instance();
-    	settings = runtimeManager.getSettings();
 	}
 
     @Override
     public void onNewTicket(TicketModel ticket) {
-    	if (!shallPost(ticket)) {
+    	Route route = route(ticket);
+    	if (!route.isRoutable()) {
+    		glip.skip(1);
 			return;
 		}
 
+    	TicketEvent payload = new TicketEvent(this, ticket, ticket.changes.get(0), true);
+    	payload.event(EventType.TICKET, "created");
+
+    	route.apply(payload);
+   		glip.sendAsync(payload);
+    }
+
+    /**
+     * Renders the Glip message for a new ticket.
+     *
+     * @param event
+     */
+    protected void renderNewTicket(TicketEvent event) {
 		Set<TicketModel.Field> fieldExclusions = new HashSet<TicketModel.Field>();
 		fieldExclusions.addAll(Arrays.asList(TicketModel.Field.watchers, TicketModel.Field.voters,
 				TicketModel.Field.status, TicketModel.Field.mentions, TicketModel.Field.title));
 
-    	Change change = ticket.changes.get(0);
-    	IUserManager userManager = GitblitContext.getManager(IUserManager.class);
-
-    	UserModel reporter = userManager.getUserModel(change.author);
+    	UserCache.User reporter = glip.getUserCache().refresh(event.author);
 
     	String activity = String.format("%s has created a ticket for %s", reporter.getDisplayName(),
-    			StringUtils.stripDotGit(ticket.repository));
+    			StringUtils.stripDotGit(event.repositoryName));
 
     	StringBuilder sb = new StringBuilder();
-    	sb.append(String.format("**%s** [ticket-%s](%s): %s\n", StringUtils.stripDotGit(ticket.repository),
-    			ticket.number, getUrl(ticket), ticket.title));
+    	sb.append(String.format("**%s** [ticket-%s](%s): %s\n", StringUtils.stripDotGit(event.repositoryName),
+    			event.number, event.url, event.ticketTitle));
 
-    	fields(sb, ticket, ticket.changes.get(0), fieldExclusions);
+    	fields(sb, event, fieldExclusions);
 
-    	Payload payload = new Payload()
+    	event
     		.icon(getIconUrl(reporter))
 			.activity(activity)
 			.body(sb.toString());
-
-   		glip.sendAsync(payload);
     }
 
     @Override
     public void onUpdateTicket(TicketModel ticket, Change change) {
-    	if (!shallPost(ticket)) {
+		if (!change.hasReview() && !change.hasPatchset() && !change.isMerge() && !change.isStatusChange()
+				&& !(change.hasComment() && glip.getConfig().isPostTicketComments())) {
+			// not a change we are reporting
+			return;
+		}
+
+    	Route route = route(ticket);
+    	if (!route.isRoutable()) {
+    		// nothing is walked or rendered for this change
+    		glip.skip(1);
 			return;
 		}
+
+		EventType eventType;
+		String action;
+		if (change.hasReview()) {
+			eventType = EventType.REVIEW;
+			action = "reviewed";
+		} else if (change.hasPatchset()) {
+			eventType = EventType.PATCHSET;
+			action = "pushed";
+		} else {
+			eventType = EventType.TICKET;
+			action = "updated";
+		}
+
+		TicketEvent payload = new TicketEvent(this, ticket, change, false);
+		payload.event(eventType, action);
+
+		route.apply(payload);
+   		glip.sendAsync(payload);
+    }
+
+    /**
+     * Renders the Glip message for a ticket change.
+     *
+     * @param event
+     */
+    protected void renderUpdateTicket(TicketEvent event) {
 		Set<TicketModel.Field> fieldExclusions = new HashSet<TicketModel.Field>();
 		fieldExclusions.addAll(Arrays.asList(TicketModel.Field.watchers, TicketModel.Field.voters,
 				TicketModel.Field.mentions, TicketModel.Field.title, TicketModel.Field.body,
 				TicketModel.Field.mergeSha));
 
-		IUserManager userManager = GitblitContext.getManager(IUserManager.class);
-		UserModel user = userManager.getUserModel(change.author);
+		UserCache users = glip.getUserCache();
+		UserCache.User user = users.refresh(event.author);
 		String author = user.getDisplayName();
+		String repository = StringUtils.stripDotGit(event.repositoryName);
 		String activity = null;
 		String body = null;
 
-		if (change.hasReview()) {
+		if (event.hasReview()) {
 			/*
 			 * Patchset review
 			 */
     		activity = String.format("%s has reviewed %s patchset %s-%s", author,
-    				StringUtils.stripDotGit(ticket.repository),
-    				change.review.patchset, change.review.rev);
-
-    		String emoji = "";
-    		switch (change.review.score) {
-    		case approved:
-    			emoji = ":white_check_mark:";
-    			break;
-    		case looks_good:
-    			emoji = ":thumbsup:";
-    			break;
-    		case needs_improvement:
-    			emoji = ":thumbsdown:";
-    			break;
-    		case vetoed:
-    			emoji = ":no_entry_sign:";
-    			break;
-    		default:
-    			break;
-    		}
+    				repository, event.reviewPatchset, event.reviewRev);
 
 			StringBuilder sb = new StringBuilder();
-
-    		Review review = change.review;
-    		String d = settings.getString(Keys.web.datestampShortFormat, "yyyy-MM-dd");
-			String t = settings.getString(Keys.web.timeFormat, "HH:mm");
-			DateFormat df = new SimpleDateFormat(d + " " + t);
-			List<Change> reviews = ticket.getReviews(ticket.getPatchset(review.patchset, review.rev));
-			sb.append("|**Date**|**Reviewer**|**Score**|**Description**|\n");
-			for (Change c : reviews) {
-				String name = c.author;
-				UserModel u = userManager.getUserModel(change.author);
-				if (u != null) {
-					name = u.getDisplayName();
-				}
-				String score;
-				if (change.review.score.getValue() > 0) {
-					score = "+" + c.review.score.getValue();
-				} else {
-					score = "" + c.review.score.getValue();
-				}
-				String eval = String.format("%s (%s)", emoji, score);
-				String date = df.format(c.date);
-				sb.append(String.format("|%1$s|%2$s|%3$s|%4$s|\n",
-						date, name, eval, c.review.score.toString()));
-			}
+			glip.getConfig().getReviewRenderer().render(sb, event.reviews, users);
 			sb.append("\n");
 			body = sb.toString();
 
-		} else if (change.hasPatchset()) {
+		} else if (event.hasPatchset()) {
 			/*
 			 * New Patchset
 			 */
-			String tip = change.patchset.tip;
-			String base;
-			if (change.patchset.rev == 1) {
-				if (change.patchset.number == 1) {
+			if (event.patchsetRev == 1) {
+				if (event.patchsetNumber == 1) {
 					/*
 					 * Initial proposal
 					 */
-					activity = String.format("%s has pushed a proposal for %s", author,
-							StringUtils.stripDotGit(ticket.repository));
+					activity = String.format("%s has pushed a proposal for %s", author, repository);
 				} else {
 					/*
 					 * Rewritten patchset
 					 */
 					activity = String.format("%s has rewritten a %s patchset (%s)", author,
-							StringUtils.stripDotGit(ticket.repository), change.patchset.type);
+							repository, event.patchsetType);
 				}
-				base = change.patchset.base;
 			} else {
 				/*
 				 * Fast-forward patchset update
 				 */
-				activity = String.format("%s has added %s %s to a %s ticket", author, change.patchset.added,
-						change.patchset.added == 1 ? "commit" : "commits", StringUtils.stripDotGit(ticket.repository));
-				Patchset prev = ticket.getPatchset(change.patchset.number, change.patchset.rev - 1);
-				base = prev.tip;
+				activity = String.format("%s has added %s %s to a %s ticket", author, event.added,
+						event.added == 1 ? "commit" : "commits", repository);
 			}
 
 			// show the fields above the commit list
 			StringBuilder sb = new StringBuilder();
-			fields(sb, ticket, change, fieldExclusions);
+			fields(sb, event, fieldExclusions);
 
 			// abbreviated commit list
-			List<RevCommit> commits = getCommits(ticket.repository, base, tip);
+			List<CommitCache.Entry> commits = getCommits(event.repositoryName, event.base, event.tip);
 			sb.append("\n\n");
-			int shortIdLen = settings.getInteger(Keys.web.shortCommitIdLength, 6);
+			LinkBuilder links = glip.getConfig().getLinks();
+			int shortIdLen = glip.getConfig().getShortCommitIdLength();
 			int maxCommits = 5;
 			for (int i = 0; i < Math.min(maxCommits, commits.size()); i++) {
-				RevCommit commit = commits.get(i);
-				String username = "";
-				String email = "";
-				if (commit.getAuthorIdent().getEmailAddress() != null) {
-					username = commit.getAuthorIdent().getName();
-					email = commit.getAuthorIdent().getEmailAddress().toLowerCase();
-					if (StringUtils.isEmpty(username)) {
-						username = email;
-					}
-				} else {
-					username = commit.getAuthorIdent().getName();
-					email = username.toLowerCase();
-				}
-//				String gravatarUrl = ActivityUtils.getGravatarThumbnailUrl(email, 16);
-				String commitUrl = getUrl(ticket.repository, null, commit.getName());
-				String shortId = commit.getName().substring(0, shortIdLen);
-				String shortMessage = StringUtils.trimString(commit.getShortMessage(), Constants.LEN_SHORTLOG);
-//				String row = String.format("|![%s](%s)|[%s](%s)|%s|\n",
-//						username, gravatarUrl, shortId, commitUrl, shortMessage);
-				String row = String.format("|%s|[%s](%s)|%s|\n",
-						username, shortId, commitUrl, shortMessage);
-				sb.append(row);
+				CommitCache.Entry commit = commits.get(i);
+				sb.append('|').append(commit.author).append("|[").append(commit.getShortId(shortIdLen)).append("](");
+				links.appendCommit(sb, event.repositoryName, commit.id);
+				sb.append(")|").append(commit.shortMessage).append("|\n");
 			}
 			sb.append("\n");
 
 			// compare link
 			if (commits.size() > 1) {
-				String compareUrl = getUrl(ticket.repository, base, tip);
+				String compareUrl = links.getUrl(event.repositoryName, event.base, event.tip);
 				String compareText;
 				if (commits.size() > maxCommits) {
 					int diff = commits.size() - maxCommits;
@@ -267,51 +236,39 @@ public class GlipTicketHook extends TicketHook {
 
 			body = sb.toString();
 
-		} else if (change.isMerge()) {
+		} else if (event.merge) {
 			/*
 			 * Merged
 			 */
-			activity = String.format("%s has merged a %s ticket", author, StringUtils.stripDotGit(ticket.repository));
-		} else if (change.isStatusChange()) {
+			activity = String.format("%s has merged a %s ticket", author, repository);
+		} else if (event.statusChange) {
 			/*
 			 * Status Change
 			 */
-			activity = String.format("%s has changed the status of a %s ticket", author,
-					StringUtils.stripDotGit(ticket.repository));
-		} else if (change.hasComment() && settings.getBoolean(Plugin.SETTING_POST_TICKET_COMMENTS, true)) {
+			activity = String.format("%s has changed the status of a %s ticket", author, repository);
+		} else if (event.hasComment() && glip.getConfig().isPostTicketComments()) {
 			/*
 			 * Comment
 			 */
-			activity = String.format("%s has commented on a %s ticket", author,
-					StringUtils.stripDotGit(ticket.repository));
-		}
-
-		if (activity == null) {
-			// not a change we are reporting
-			return;
+			activity = String.format("%s has commented on a %s ticket", author, repository);
 		}
 
 		StringBuilder sb = new StringBuilder();
-		sb.append(String.format("**%s** [ticket-%s](%s): %s\n", StringUtils.stripDotGit(ticket.repository),
-				ticket.number, getUrl(ticket), ticket.title));
+		sb.append(String.format("**%s** [ticket-%s](%s): %s\n", repository,
+				event.number, event.url, event.ticketTitle));
 		if (!StringUtils.isEmpty(body)) {
 			sb.append(body.trim());
 		}
 
 		// fields on patchset changes are output above this point
-		if (!change.hasPatchset()) {
-			fields(sb, ticket, change, fieldExclusions);
+		if (!event.hasPatchset()) {
+			fields(sb, event, fieldExclusions);
 		}
 
-    	Payload payload = new Payload()
+    	event
     		.icon(getIconUrl(user))
     		.activity(activity)
     		.body(sb.toString());
-
-		IRepositoryManager repositoryManager = GitblitContext.getManager(IRepositoryManager.class);
-		RepositoryModel repository = repositoryManager.getRepositoryModel(ticket.repository);
-   		glip.setConversation(repository, payload);
-   		glip.sendAsync(payload);
     }
 
 	/**
@@ -321,29 +278,26 @@ public class GlipTicketHook extends TicketHook {
 	 * @param user
 	 * @return an url
 	 */
-    protected String getIconUrl(UserModel user) {
-		String iconUrl = settings.getString(Plugin.SETTING_TICKET_ICON, null);
-		if (StringUtils.isEmpty(iconUrl) && !StringUtils.isEmpty(user.emailAddress)) {
-			iconUrl = ActivityUtils.getGravatarThumbnailUrl(user.emailAddress, 48);
+    protected String getIconUrl(UserCache.User user) {
+		String iconUrl = glip.getConfig().getTicketIcon();
+		if (StringUtils.isEmpty(iconUrl)) {
+			iconUrl = user.getIconUrl();
 		}
 		return iconUrl;
     }
 
-    protected void fields(StringBuilder sb, TicketModel ticket, Change change, Set<TicketModel.Field> fieldExclusions) {
+    protected void fields(StringBuilder sb, TicketEvent event, Set<TicketModel.Field> fieldExclusions) {
     	Map<TicketModel.Field, String> filtered = new HashMap<TicketModel.Field, String>();
-    	if (change.hasFieldChanges()) {
-    		for (Map.Entry<TicketModel.Field, String> fc : change.fields.entrySet()) {
-    			if (!fieldExclusions.contains(fc.getKey())) {
-    				// field is included
-    				filtered.put(fc.getKey(), fc.getValue());
-    			}
+    	for (Map.Entry<TicketModel.Field, String> fc : event.fields.entrySet()) {
+    		if (!fieldExclusions.contains(fc.getKey())) {
+    			// field is included
+    			filtered.put(fc.getKey(), fc.getValue());
     		}
     	}
 
-    	if (change.hasComment() && settings.getBoolean(Plugin.SETTING_POST_TICKET_COMMENTS, true)) {
+    	if (event.hasComment() && glip.getConfig().isPostTicketComments()) {
     		sb.append("\n");
-    		String comment = change.comment.text;
-    		sb.append(comment);
+    		sb.append(event.comment);
     	}
 
     	// sort by field ordinal
@@ -375,78 +329,49 @@ public class GlipTicketHook extends TicketHook {
     		return username;
     	}
 
-		IUserManager userManager = GitblitContext.getManager(IUserManager.class);
-		UserModel user = userManager.getUserModel(username);
-		if (user != null) {
-			String displayName = user.getDisplayName();
-			if (!StringUtils.isEmpty(displayName) && !username.equals(displayName)) {
-				return displayName;
-			}
-		}
-		return username;
+		return glip.getUserCache().get(username).getDisplayName();
     }
 
     /**
-     * Determine if a ticket should be posted to a Glip conversation.
+     * Determine where a ticket should be posted.
      *
      * @param ticket
-     * @return true if the ticket should be posted to a Glip conversation
+     * @return the route of the ticket, unroutable if it should not be posted
      */
-    protected boolean shallPost(TicketModel ticket) {
-    	IRuntimeManager runtimeManager = GitblitContext.getManager(IRuntimeManager.class);
-    	boolean shallPostTicket = runtimeManager.getSettings().getBoolean(Plugin.SETTING_POST_TICKETS, true);
-    	if (!shallPostTicket) {
-    		return false;
+    protected Route route(TicketModel ticket) {
+    	GlipConfig config = glip.getConfig();
+    	if (!config.isPostTickets()) {
+    		return Route.unroutable(config, null, "tickets are not posted");
     	}
 
 		IRepositoryManager repositoryManager = GitblitContext.getManager(IRepositoryManager.class);
 		RepositoryModel repository = repositoryManager.getRepositoryModel(ticket.repository);
-		boolean shallPostRepo = glip.shallPost(repository);
-		return shallPostRepo;
+		return glip.route(repository);
     }
 
     protected String getUrl(TicketModel ticket) {
     	return GitblitContext.getManager(IGitblit.class).getTicketService().getTicketUrl(ticket);
     }
 
-    /**
-     * Returns a link appropriate for the push.
-     *
-     * If both new and old ids are null, the summary page link is returned.
-     *
-     * @param repo
-     * @param oldId
-     * @param newId
-     * @return a link
-     */
-    protected String getUrl(String repo, String oldId, String newId) {
-    	IRuntimeManager runtimeManager = GitblitContext.getManager(IRuntimeManager.class);
-		String canonicalUrl = runtimeManager.getSettings().getString(Keys.web.canonicalUrl, "https://localhost:8443");
-
-		if (oldId == null && newId != null) {
-			// create
-			final String hrefPattern = "{0}/commit?r={1}&h={2}";
-			return MessageFormat.format(hrefPattern, canonicalUrl, repo, newId);
-		} else if (oldId != null && newId == null) {
-			// log
-			final String hrefPattern = "{0}/log?r={1}&h={2}";
-			return MessageFormat.format(hrefPattern, canonicalUrl, repo, oldId);
-		} else if (oldId != null && newId != null) {
-			// update/compare
-			final String hrefPattern = "{0}/compare?r={1}&h={2}..{3}";
-			return MessageFormat.format(hrefPattern, canonicalUrl, repo, oldId, newId);
-		} else if (oldId == null && newId == null) {
-			// summary page
-			final String hrefPattern = "{0}/summary?r={1}";
-			return MessageFormat.format(hrefPattern, canonicalUrl, repo);
+	/**
+	 * Returns the commits of a patchset, oldest first.  The commits are read
+	 * from the commit cache if they were recently listed, e.g. by the push of
+	 * the patchset, otherwise they are walked in the repository.
+	 *
+	 * @param repositoryName
+	 * @param baseId
+	 * @param tipId
+	 * @return the commits
+	 */
+	private List<CommitCache.Entry> getCommits(String repositoryName, String baseId, String tipId) {
+		CommitCache cache = glip.getCommitCache();
+		List<CommitCache.Entry> list = cache.getRange(repositoryName, baseId, tipId);
+		if (list != null) {
+			return list;
 		}
 
-		return null;
-    }
-
-	private List<RevCommit> getCommits(String repositoryName, String baseId, String tipId) {
 		IRepositoryManager repositoryManager = GitblitContext.getManager(IRepositoryManager.class);
-		List<RevCommit> list = new ArrayList<RevCommit>();
+		list = new ArrayList<CommitCache.Entry>();
 		try (Repository db = repositoryManager.getRepository(repositoryName)) {
 			try (RevWalk walk = new RevWalk(db)) {
 				walk.reset();
@@ -461,7 +386,7 @@ public class GlipTicketHook extends TicketHook {
 					if (c == null) {
 						break;
 					}
-					list.add(c);
+					list.add(cache.put(repositoryName, c));
 				}
 			} catch (IOException e) {
 				// Should never happen, the core receive process would have
@@ -471,4 +396,131 @@ public class GlipTicketHook extends TicketHook {
 		}
 		return list;
 	}
-}
\ No newline at end of file
+
+	/**
+	 * The inputs of a ticket event.  They are copied from the ticket and the
+	 * change on the ticket thread, so that the message renders the ticket as
+	 * it was when the event occurred even if the ticket is updated again
+	 * before the dispatch worker renders it, or after a restart if the message
+	 * was recovered from the outbox.
+	 */
+	static class TicketEvent extends DeferredPayload {
+
+		final String repositoryName;
+
+		final long number;
+
+		final String ticketTitle;
+
+		final String url;
+
+		final String author;
+
+		final boolean created;
+
+		final boolean merge;
+
+		final boolean statusChange;
+
+		final String comment;
+
+		final Map<TicketModel.Field, String> fields;
+
+		final List<ReviewRenderer.Row> reviews;
+
+		final int reviewPatchset;
+
+		final int reviewRev;
+
+		final int patchsetNumber;
+
+		final int patchsetRev;
+
+		final int added;
+
+		final TicketModel.PatchsetType patchsetType;
+
+		final String base;
+
+		final String tip;
+
+		private transient GlipTicketHook hook;
+
+		TicketEvent(GlipTicketHook hook, TicketModel ticket, Change change, boolean created) {
+			this.hook = hook;
+			this.repositoryName = ticket.repository;
+			this.number = ticket.number;
+			this.ticketTitle = ticket.title;
+			this.url = hook.getUrl(ticket);
+			this.author = change.author;
+			this.created = created;
+			this.merge = change.isMerge();
+			this.statusChange = change.isStatusChange();
+			this.comment = change.hasComment() ? change.comment.text : null;
+			this.fields = new HashMap<TicketModel.Field, String>();
+			if (change.hasFieldChanges()) {
+				fields.putAll(change.fields);
+			}
+
+			if (change.hasReview()) {
+				this.reviews = ReviewRenderer.getRows(ticket, change.review);
+				this.reviewPatchset = change.review.patchset;
+				this.reviewRev = change.review.rev;
+			} else {
+				this.reviews = null;
+				this.reviewPatchset = 0;
+				this.reviewRev = 0;
+			}
+
+			if (change.hasPatchset()) {
+				Patchset patchset = change.patchset;
+				this.patchsetNumber = patchset.number;
+				this.patchsetRev = patchset.rev;
+				this.added = patchset.added;
+				this.patchsetType = patchset.type;
+				this.tip = patchset.tip;
+				if (patchset.rev == 1) {
+					this.base = patchset.base;
+				} else {
+					// a fast-forward update of the previous revision
+					this.base = ticket.getPatchset(patchset.number, patchset.rev - 1).tip;
+				}
+			} else {
+				this.patchsetNumber = 0;
+				this.patchsetRev = 0;
+				this.added = 0;
+				this.patchsetType = null;
+				this.tip = null;
+				this.base = null;
+			}
+
+			repository(repositoryName);
+			author(author, ticket.status == null ? null : ticket.status.toString());
+		}
+
+		boolean hasReview() {
+			return reviews != null;
+		}
+
+		boolean hasPatchset() {
+			return tip != null;
+		}
+
+		boolean hasComment() {
+			return comment != null;
+		}
+
+		@Override
+		protected void renderPayload() {
+			if (hook == null) {
+				// recovered from the outbox
+				hook = new GlipTicketHook();
+			}
+			if (created) {
+				hook.renderNewTicket(this);
+			} else {
+				hook.renderUpdateTicket(this);
+			}
+		}
+	}
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.glip;
+
+import java.io.IOException;
+
+import org.apache.http.pool.PoolStats;
+
+/**
+ * Posts payloads to a Glip webhook.
+ *
+ * @author James Moger
+ *
+ */
+public interface GlipTransport {
+
+	/**
+	 * Notified when an asynchronous post completes.
+	 */
+	interface Callback {
+
+		/**
+		 * Glip accepted the payload.
+		 */
+		void completed();
+
+		/**
+		 * The post failed.
+		 *
+		 * @param e
+		 *            a {@link GlipException} if Glip rejected the payload
+		 */
+		void failed(IOException e);
+	}
+
+	void start() throws IOException;
+
+	void stop();
+
+	/**
+	 * Posts a payload and waits for the response.
+	 *
+	 * @param payload
+	 * @param url
+	 * @throws IOException
+	 */
+	void send(Payload payload, String url) throws IOException;
+
+	/**
+	 * Posts a payload and notifies the callback when the post completes.  A
+	 * blocking transport notifies the callback before returning.
+	 *
+	 * @param payload
+	 * @param url
+	 * @param callback
+	 */
+	void post(Payload payload, String url, Callback callback);
+
+	/**
+	 * Closes expired connections and connections which have been idle for
+	 * longer than the timeout.
+	 *
+	 * @param idleTimeout
+	 *            in seconds
+	 */
+	void closeIdleConnections(long idleTimeout);
+
+	/**
+	 * Returns the state of the connection pool.
+	 *
+	 * @return the pool stats
+	 */
+	PoolStats getPoolStats();
+
+	/**
+	 * Returns the number of connections opened since the transport was
+	 * started.
+	 *
+	 * @return the connection count
+	 */
+	long getConnectionCount();
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.glip;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of latencies in microseconds.
+ *
+ * Values are counted in log-linear buckets: every power of two is split into
+ * 16 buckets so a percentile is accurate to within about 6% of the value,
+ * from 1 microsecond up to several days, in a fixed 5 KB of counters.
+ * Recording a value is a couple of atomic increments.
+ *
+ * @author James Moger
+ *
+ */
+public class LatencyHistogram {
+
+	static final int SUB_BUCKET_BITS = 4;
+
+	static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	/**
+	 * The largest recorded magnitude, 2^39 microseconds is about 6 days.
+	 */
+	static final int MAX_EXPONENT = 39;
+
+	static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+	private final AtomicLong count = new AtomicLong();
+
+	private final AtomicLong sum = new AtomicLong();
+
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Records a latency measured with System.nanoTime().
+	 *
+	 * @param nanos
+	 */
+	public void recordNanos(long nanos) {
+		record(TimeUnit.NANOSECONDS.toMicros(nanos));
+	}
+
+	/**
+	 * Records a latency.
+	 *
+	 * @param micros
+	 */
+	public void record(long micros) {
+		long value = Math.max(0, micros);
+		counts.incrementAndGet(index(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+		long current = max.get();
+		while (value > current && !max.compareAndSet(current, value)) {
+			current = max.get();
+		}
+	}
+
+	/**
+	 * Returns a consistent copy of the histogram.
+	 *
+	 * @return a snapshot
+	 */
+	public Snapshot snapshot() {
+		long [] copy = new long[BUCKETS];
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			copy[i] = counts.get(i);
+			total += copy[i];
+		}
+		return new Snapshot(copy, total, sum.get(), max.get());
+	}
+
+	static int index(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		if (exponent > MAX_EXPONENT) {
+			return BUCKETS - 1;
+		}
+		int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) - SUB_BUCKETS;
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+	}
+
+	/**
+	 * Returns the largest value counted in the bucket.
+	 */
+	static long upperBound(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		int subBucket = index % SUB_BUCKETS;
+		long lower = (long) (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+		return lower + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+	}
+
+	/**
+	 * An immutable copy of a histogram.
+	 */
+	public static class Snapshot {
+
+		private final long [] counts;
+
+		private final long count;
+
+		private final long sum;
+
+		private final long max;
+
+		Snapshot(long [] counts, long count, long sum, long max) {
+			this.counts = counts;
+			this.count = count;
+			this.sum = sum;
+			this.max = max;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		/**
+		 * Returns the mean latency in microseconds.
+		 *
+		 * @return the mean or 0 if nothing was recorded
+		 */
+		public long getMean() {
+			return count == 0 ? 0 : sum / count;
+		}
+
+		/**
+		 * Returns the largest latency in microseconds.
+		 *
+		 * @return the max
+		 */
+		public long getMax() {
+			return max;
+		}
+
+		/**
+		 * Returns the latency in microseconds below which the percentage of
+		 * recorded latencies fall.
+		 *
+		 * @param percentile
+		 *            0-100
+		 * @return the latency or 0 if nothing was recorded
+		 */
+		public long getPercentile(double percentile) {
+			if (count == 0) {
+				return 0;
+			}
+			long rank = (long) Math.ceil(Math.min(100, Math.max(0, percentile)) / 100d * count);
+			rank = Math.max(1, rank);
+			long seen = 0;
+			for (int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if (seen >= rank) {
+					return Math.min(upperBound(i), max);
+				}
+			}
+			return max;
+		}
+
+		/**
+		 * Returns the latencies recorded since an earlier snapshot of the
+		 * same histogram.  The max is the upper bound of the largest bucket
+		 * recorded since the earlier snapshot.
+		 *
+		 * @param earlier
+		 * @return the difference
+		 */
+		public Snapshot since(Snapshot earlier) {
+			long [] diff = new long[counts.length];
+			long total = 0;
+			long largest = 0;
+			for (int i = 0; i < counts.length; i++) {
+				diff[i] = counts[i] - earlier.counts[i];
+				total += diff[i];
+				if (diff[i] > 0) {
+					largest = Math.min(upperBound(i), max);
+				}
+			}
+			return new Snapshot(diff, total, sum - earlier.sum, largest);
+		}
+	}
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.glip;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Builds links to the Gitblit web pages of a repository.
+ *
+ * The url templates are parsed once against the canonical url of the
+ * settings snapshot and links are appended directly to the message being
+ * rendered.  Repository names and refs are percent-encoded.
+ *
+ * @author James Moger
+ *
+ */
+class LinkBuilder {
+
+	static final String COMMIT = "{0}/commit?r={1}&h={2}";
+
+	static final String LOG = "{0}/log?r={1}&h={2}";
+
+	static final String COMPARE = "{0}/compare?r={1}&h={2}..{3}";
+
+	static final String SUMMARY = "{0}/summary?r={1}";
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final char [] HEX = "0123456789ABCDEF".toCharArray();
+
+	final String canonicalUrl;
+
+	private final Template commit;
+
+	private final Template log;
+
+	private final Template compare;
+
+	private final Template summary;
+
+	LinkBuilder(String canonicalUrl) {
+		String url = canonicalUrl == null ? "" : canonicalUrl;
+		while (url.endsWith("/")) {
+			url = url.substring(0, url.length() - 1);
+		}
+		this.canonicalUrl = url;
+		this.commit = new Template(COMMIT, url);
+		this.log = new Template(LOG, url);
+		this.compare = new Template(COMPARE, url);
+		this.summary = new Template(SUMMARY, url);
+	}
+
+	/**
+	 * Appends the link to a commit.
+	 *
+	 * @param sb
+	 * @param repo
+	 * @param id
+	 *            the commit id or a ref
+	 * @return the builder
+	 */
+	StringBuilder appendCommit(StringBuilder sb, String repo, String id) {
+		return commit.append(sb, repo, id, null);
+	}
+
+	/**
+	 * Appends the link to the log of a ref.
+	 *
+	 * @param sb
+	 * @param repo
+	 * @param ref
+	 * @return the builder
+	 */
+	StringBuilder appendLog(StringBuilder sb, String repo, String ref) {
+		return log.append(sb, repo, ref, null);
+	}
+
+	/**
+	 * Appends the link to the comparison of two commits.
+	 *
+	 * @param sb
+	 * @param repo
+	 * @param oldId
+	 * @param newId
+	 * @return the builder
+	 */
+	StringBuilder appendCompare(StringBuilder sb, String repo, String oldId, String newId) {
+		return compare.append(sb, repo, oldId, newId);
+	}
+
+	/**
+	 * Appends the link to the summary page of a repository.
+	 *
+	 * @param sb
+	 * @param repo
+	 * @return the builder
+	 */
+	StringBuilder appendSummary(StringBuilder sb, String repo) {
+		return summary.append(sb, repo, null, null);
+	}
+
+	/**
+	 * Returns a link appropriate for the push.
+	 *
+	 * If both new and old ids are null, the summary page link is returned.
+	 *
+	 * @param repo
+	 * @param oldId
+	 * @param newId
+	 * @return a link
+	 */
+	String getUrl(String repo, String oldId, String newId) {
+		StringBuilder sb = new StringBuilder(canonicalUrl.length() + 128);
+		if (oldId == null && newId != null) {
+			// create
+			appendCommit(sb, repo, newId);
+		} else if (oldId != null && newId == null) {
+			// log
+			appendLog(sb, repo, oldId);
+		} else if (oldId != null && newId != null) {
+			// update/compare
+			appendCompare(sb, repo, oldId, newId);
+		} else {
+			// summary page
+			appendSummary(sb, repo);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Percent-encodes a query parameter value.  Unreserved characters and
+	 * the path separator are kept as they are.
+	 *
+	 * @param sb
+	 * @param value
+	 * @return the builder
+	 */
+	static StringBuilder encode(StringBuilder sb, String value) {
+		int len = value.length();
+		for (int i = 0; i < len; i++) {
+			char c = value.charAt(i);
+			if (isUnreserved(c)) {
+				sb.append(c);
+				continue;
+			}
+			// encode the run of reserved or non-ascii characters
+			int end = i + 1;
+			while (end < len && !isUnreserved(value.charAt(end))) {
+				end++;
+			}
+			for (byte b : value.substring(i, end).getBytes(UTF8)) {
+				sb.append('%').append(HEX[(b >> 4) & 0xf]).append(HEX[b & 0xf]);
+			}
+			i = end - 1;
+		}
+		return sb;
+	}
+
+	private static boolean isUnreserved(char c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+				|| c == '-' || c == '.' || c == '_' || c == '~' || c == '/';
+	}
+
+	/**
+	 * A url pattern split into literal text and parameters.  {0} is the
+	 * canonical url and is folded into the literal text.
+	 */
+	static class Template {
+
+		final String [] literals;
+
+		final int [] params;
+
+		Template(String pattern, String canonicalUrl) {
+			List<String> literals = new ArrayList<String>();
+			List<Integer> params = new ArrayList<Integer>();
+			StringBuilder literal = new StringBuilder();
+			int i = 0;
+			while (i < pattern.length()) {
+				char c = pattern.charAt(i);
+				int close = c == '{' ? pattern.indexOf('}', i) : -1;
+				if (close < 0) {
+					literal.append(c);
+					i++;
+					continue;
+				}
+				int index = Integer.parseInt(pattern.substring(i + 1, close));
+				if (index == 0) {
+					literal.append(canonicalUrl);
+				} else {
+					literals.add(literal.toString());
+					params.add(index);
+					literal.setLength(0);
+				}
+				i = close + 1;
+			}
+			literals.add(literal.toString());
+
+			this.literals = literals.toArray(new String[literals.size()]);
+			this.params = new int[params.size()];
+			for (int j = 0; j < this.params.length; j++) {
+				this.params[j] = params.get(j);
+			}
+		}
+
+		StringBuilder append(StringBuilder sb, String p1, String p2, String p3) {
+			sb.append(literals[0]);
+			for (int i = 0; i < params.length; i++) {
+				String value;
+				switch (params[i]) {
+				case 1:
+					value = p1;
+					break;
+				case 2:
+					value = p2;
+					break;
+				default:
+					value = p3;
+					break;
+				}
+				if (value != null) {
+					encode(sb, value);
+				}
+				sb.append(literals[i + 1]);
+			}
+			return sb;
+		}
+	}
+}
@@ -0,0 +1,556 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.glip;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.gitblit.utils.StringUtils;
+import com.google.gson.Gson;
+
+/**
+ * An append-only, segmented journal of the payloads waiting to be delivered.
+ *
+ * Every payload is appended to the journal before it is posted and an
+ * acknowledgement is appended after Glip has accepted it.  Payloads which were
+ * never acknowledged are recovered when the plugin is started.
+ *
+ * A rendered payload is journaled as the JSON which is posted.  A payload
+ * which is rendered later by the dispatch worker is journaled as its event
+ * inputs, the JSON of each of its parts and the class which renders it, so
+ * that a recovered event is rendered as if it had just been submitted.
+ *
+ * Records are written sequentially to the active segment.  The segment is
+ * forced to disk in batches by {@link #sync()} which is expected to be called
+ * periodically.  A new segment is started once the active segment exceeds the
+ * segment size and the oldest segments are deleted once all of their payloads
+ * have been acknowledged.  A payload which is never acknowledged, e.g. because
+ * its retries ran out while Glip was unavailable, would keep its segment and
+ * every newer segment until the next start.  So when a new segment is started
+ * the oldest segments which are mostly acknowledged are compacted: their
+ * pending payloads are copied, with the same ids, to the new segment and the
+ * old segments are deleted.
+ *
+ * @author James Moger
+ *
+ */
+class Outbox implements Closeable {
+
+	static final byte PAYLOAD = 1;
+
+	static final byte ACK = 2;
+
+	static final byte EVENT = 3;
+
+	static final String SUFFIX = ".journal";
+
+	final Logger log = LoggerFactory.getLogger(getClass());
+
+	final File folder;
+
+	final long segmentSize;
+
+	final Gson gson;
+
+	final TreeMap<Long, Segment> segments = new TreeMap<Long, Segment>();
+
+	/**
+	 * The segment which holds each pending payload.
+	 */
+	final Map<Long, Segment> owners = new HashMap<Long, Segment>();
+
+	private Segment active;
+
+	private long nextId = 1;
+
+	private boolean dirty;
+
+	/**
+	 * A recovered payload and its journal id.
+	 */
+	static class Entry {
+		final long id;
+		final Payload payload;
+
+		Entry(long id, Payload payload) {
+			this.id = id;
+			this.payload = payload;
+		}
+	}
+
+	private static class Segment {
+		final long firstId;
+		final File file;
+		final FileOutputStream os;
+		final FileChannel channel;
+		int records;
+		int live;
+
+		Segment(long firstId, File file) throws IOException {
+			this.firstId = firstId;
+			this.file = file;
+			this.os = new FileOutputStream(file, true);
+			this.channel = os.getChannel();
+		}
+
+		long size() throws IOException {
+			return channel.size();
+		}
+
+		void close() throws IOException {
+			os.close();
+		}
+	}
+
+	Outbox(File folder, long segmentSize, Gson gson) {
+		this.folder = folder;
+		this.segmentSize = segmentSize;
+		this.gson = gson;
+	}
+
+	/**
+	 * Opens the journal and recovers all payloads which were not acknowledged.
+	 * The recovered payloads are rewritten to a new segment and the old
+	 * segments are deleted.
+	 *
+	 * @return the unacknowledged payloads in journal order
+	 * @throws IOException
+	 */
+	synchronized List<Entry> open() throws IOException {
+		folder.mkdirs();
+		if (!folder.isDirectory()) {
+			throw new IOException("Failed to create Glip outbox folder " + folder);
+		}
+
+		File [] files = folder.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.endsWith(SUFFIX);
+			}
+		});
+		if (files == null) {
+			files = new File[0];
+		}
+		// segment names are zero-padded ids, so they sort by age
+		Arrays.sort(files);
+
+		Map<Long, List<Payload>> pending = new LinkedHashMap<Long, List<Payload>>();
+		for (File file : files) {
+			nextId = Math.max(nextId, read(file, pending) + 1);
+		}
+
+		List<Entry> recovered = new ArrayList<Entry>();
+		for (List<Payload> parts : pending.values()) {
+			// the parts of a batch are recovered as individual messages
+			for (Payload payload : parts) {
+				recovered.add(new Entry(append(payload), payload));
+			}
+		}
+		sync();
+
+		for (File file : files) {
+			if (!file.delete()) {
+				log.warn("Failed to delete Glip outbox segment {}", file);
+			}
+		}
+
+		if (!recovered.isEmpty()) {
+			log.info("Recovered {} undelivered Glip messages from {}", recovered.size(), folder);
+		}
+		return recovered;
+	}
+
+	/**
+	 * Appends a payload to the journal.
+	 *
+	 * @param payload
+	 * @return the journal id of the payload
+	 * @throws IOException
+	 */
+	synchronized long append(Payload payload) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream data = new DataOutputStream(bytes);
+		data.writeUTF(payload.getConversation() == null ? "" : payload.getConversation());
+		byte type;
+		if (payload.isRendered()) {
+			type = PAYLOAD;
+			PayloadEntity.write(payload, data);
+		} else {
+			type = EVENT;
+			List<Payload> parts = payload.getParts();
+			data.writeInt(parts.size());
+			for (Payload part : parts) {
+				Class<?> c = part.getClass();
+				if (c.isAnonymousClass() || c.isLocalClass()) {
+					throw new IOException(c.getName() + " can not be journaled, it is not a named class");
+				}
+				byte [] json = gson.toJson(part).getBytes("UTF-8");
+				data.writeUTF(c.getName());
+				data.writeInt(json.length);
+				data.write(json);
+			}
+		}
+		data.flush();
+
+		long id = nextId++;
+		Segment segment = roll(id);
+		write(segment, type, id, bytes.toByteArray());
+		own(id, segment);
+		return id;
+	}
+
+	/**
+	 * Acknowledges delivery of a payload.
+	 *
+	 * @param id
+	 */
+	synchronized void ack(long id) {
+		if (active == null || !owners.containsKey(id)) {
+			// closed or already acknowledged
+			return;
+		}
+
+		try {
+			write(active, ACK, id, new byte[0]);
+		} catch (IOException e) {
+			log.error("Failed to acknowledge Glip message " + id, e);
+			return;
+		}
+
+		owners.remove(id).live--;
+		purge();
+	}
+
+	/**
+	 * Forces pending writes to disk.
+	 */
+	synchronized void sync() {
+		if (!dirty || active == null) {
+			return;
+		}
+		try {
+			active.channel.force(false);
+			dirty = false;
+		} catch (IOException e) {
+			log.error("Failed to sync Glip outbox", e);
+		}
+	}
+
+	/**
+	 * Returns the number of payloads waiting for acknowledgement.
+	 *
+	 * @return the number of pending payloads
+	 */
+	synchronized int getPendingCount() {
+		return owners.size();
+	}
+
+	@Override
+	public synchronized void close() {
+		sync();
+		for (Segment segment : segments.values()) {
+			try {
+				segment.close();
+			} catch (IOException e) {
+				log.error("Failed to close Glip outbox segment " + segment.file, e);
+			}
+		}
+		segments.clear();
+		owners.clear();
+		active = null;
+	}
+
+	/**
+	 * Returns the active segment, starting a new segment if the active
+	 * segment is full.
+	 */
+	private Segment roll(long id) throws IOException {
+		if (active != null && active.size() < segmentSize) {
+			return active;
+		}
+		if (active != null) {
+			// make sure the finished segment is on disk before moving on
+			active.channel.force(false);
+		}
+		File file = new File(folder, String.format("%016d%s", id, SUFFIX));
+		active = new Segment(id, file);
+		segments.put(id, active);
+		purge();
+		compact();
+		return active;
+	}
+
+	private void own(long id, Segment segment) {
+		segment.records++;
+		segment.live++;
+		owners.put(id, segment);
+	}
+
+	/**
+	 * Copies the pending payloads of the oldest segments to the active
+	 * segment, oldest segment first, while at most half of the payloads of
+	 * the oldest segment are pending.  The copies keep their ids, so a later
+	 * acknowledgement applies to the copy.
+	 */
+	private void compact() {
+		while (!segments.isEmpty()) {
+			Segment oldest = segments.firstEntry().getValue();
+			if (oldest == active || oldest.live * 2 > oldest.records) {
+				break;
+			}
+			int moved = 0;
+			Reader reader = null;
+			try {
+				reader = new Reader(oldest.file);
+				while (reader.next()) {
+					if (reader.type != ACK && owners.get(reader.id) == oldest) {
+						write(active, reader.type, reader.id, reader.data);
+						oldest.live--;
+						own(reader.id, active);
+						moved++;
+					}
+				}
+				// the copies must be on disk before the segment is deleted
+				active.channel.force(false);
+			} catch (IOException e) {
+				log.error("Failed to compact Glip outbox segment " + oldest.file, e);
+				return;
+			} finally {
+				if (reader != null) {
+					reader.close();
+				}
+			}
+			if (oldest.live > 0) {
+				log.warn("Glip outbox segment {} has {} pending messages which could not be read",
+						oldest.file, oldest.live);
+				return;
+			}
+			log.debug("Compacted Glip outbox segment {}, moved {} pending messages", oldest.file, moved);
+			purge();
+		}
+	}
+
+	/**
+	 * Deletes the oldest segments for which every payload has been
+	 * acknowledged.  Segments are only ever deleted oldest first because a
+	 * newer segment may hold the acknowledgements of an older segment.
+	 */
+	private void purge() {
+		while (!segments.isEmpty()) {
+			Segment oldest = segments.firstEntry().getValue();
+			if (oldest == active || oldest.live > 0) {
+				break;
+			}
+			segments.remove(oldest.firstId);
+			try {
+				oldest.close();
+			} catch (IOException e) {
+				log.error("Failed to close Glip outbox segment " + oldest.file, e);
+			}
+			if (!oldest.file.delete()) {
+				log.warn("Failed to delete Glip outbox segment {}", oldest.file);
+			}
+		}
+	}
+
+	private void write(Segment segment, byte type, long id, byte [] data) throws IOException {
+		ByteBuffer body = ByteBuffer.allocate(1 + 8 + data.length);
+		body.put(type);
+		body.putLong(id);
+		body.put(data);
+
+		CRC32 crc = new CRC32();
+		crc.update(body.array());
+
+		ByteBuffer record = ByteBuffer.allocate(8 + body.capacity());
+		record.putInt(body.capacity());
+		record.putInt((int) crc.getValue());
+		record.put(body.array());
+		record.flip();
+		while (record.hasRemaining()) {
+			segment.channel.write(record);
+		}
+		dirty = true;
+	}
+
+	/**
+	 * Reads the records of a segment.
+	 *
+	 * @return the highest id read from the segment
+	 */
+	private long read(File file, Map<Long, List<Payload>> pending) {
+		long maxId = 0;
+		Reader reader = null;
+		try {
+			reader = new Reader(file);
+			while (reader.next()) {
+				long id = reader.id;
+				maxId = Math.max(maxId, id);
+				DataInputStream record = new DataInputStream(new ByteArrayInputStream(reader.data));
+				if (PAYLOAD == reader.type) {
+					String conversation = record.readUTF();
+					byte [] json = new byte[record.available()];
+					record.readFully(json);
+					Payload payload = gson.fromJson(new String(json, "UTF-8"), Payload.class);
+					pending.put(id, Collections.singletonList(recovered(payload, conversation)));
+				} else if (EVENT == reader.type) {
+					String conversation = record.readUTF();
+					int count = record.readInt();
+					List<Payload> parts = new ArrayList<Payload>(count);
+					for (int i = 0; i < count; i++) {
+						String className = record.readUTF();
+						byte [] json = new byte[record.readInt()];
+						record.readFully(json);
+						Payload payload = readEvent(className, new String(json, "UTF-8"));
+						if (payload != null) {
+							parts.add(recovered(payload, conversation));
+						}
+					}
+					pending.put(id, parts);
+				} else if (ACK == reader.type) {
+					pending.remove(id);
+				}
+			}
+		} catch (Exception e) {
+			log.error("Failed to read Glip outbox segment " + file, e);
+		} finally {
+			if (reader != null) {
+				reader.close();
+			}
+		}
+		return maxId;
+	}
+
+	private Payload recovered(Payload payload, String conversation) {
+		if (!StringUtils.isEmpty(conversation)) {
+			payload.setConversation(conversation);
+		}
+		payload.setCreated(System.nanoTime());
+		return payload;
+	}
+
+	/**
+	 * Reads the inputs of an event which had not been rendered.
+	 *
+	 * @return the payload or null if the class no longer exists
+	 */
+	private Payload readEvent(String className, String json) {
+		Class<?> c;
+		try {
+			c = Class.forName(className, false, Outbox.class.getClassLoader());
+		} catch (ClassNotFoundException e) {
+			log.warn("Failed to recover a Glip message, {} does not exist", className);
+			return null;
+		}
+		if (!Payload.class.isAssignableFrom(c)) {
+			log.warn("Failed to recover a Glip message, {} is not a payload", className);
+			return null;
+		}
+		return (Payload) gson.fromJson(json, c);
+	}
+
+	/**
+	 * Reads the records of a segment in order.  A torn write or a corrupt
+	 * record ends the segment.
+	 */
+	private class Reader implements Closeable {
+		final File file;
+		final DataInputStream is;
+		byte type;
+		long id;
+		byte [] data;
+
+		Reader(File file) throws IOException {
+			this.file = file;
+			this.is = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		}
+
+		/**
+		 * Reads the next record.
+		 *
+		 * @return false at the end of the segment
+		 */
+		boolean next() throws IOException {
+			int length;
+			try {
+				length = is.readInt();
+			} catch (EOFException e) {
+				// end of segment
+				return false;
+			}
+			if (length < 9 || length > file.length()) {
+				log.warn("Glip outbox segment {} is corrupt, ignoring the remainder", file);
+				return false;
+			}
+			byte [] body;
+			int checksum;
+			try {
+				checksum = is.readInt();
+				body = new byte[length];
+				is.readFully(body);
+			} catch (EOFException e) {
+				// a torn write at the end of the segment
+				log.warn("Glip outbox segment {} is truncated, ignoring the remainder", file);
+				return false;
+			}
+
+			CRC32 crc = new CRC32();
+			crc.update(body);
+			if ((int) crc.getValue() != checksum) {
+				log.warn("Glip outbox segment {} is corrupt, ignoring the remainder", file);
+				return false;
+			}
+
+			ByteBuffer record = ByteBuffer.wrap(body);
+			type = record.get();
+			id = record.getLong();
+			data = Arrays.copyOfRange(body, record.position(), body.length);
+			return true;
+		}
+
+		@Override
+		public void close() {
+			try {
+				is.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.glip;
+
+import com.gitblit.utils.StringUtils;
+
+/**
+ * Determines what happens to a message when the dispatch queue is full.
+ *
+ * @author James Moger
+ *
+ */
+public enum OverflowPolicy {
+
+	/**
+	 * Discard the oldest queued message to make room for the new message.
+	 */
+	DROP_OLDEST,
+
+	/**
+	 * Discard the new message.
+	 */
+	DROP_NEWEST,
+
+	/**
+	 * Merge the new message into a queued message for the same conversation.
+	 * If there is no queued message for the conversation the oldest queued
+	 * message is discarded.
+	 */
+	COALESCE,
+
+	/**
+	 * Block the caller until there is room in the queue, up to a configured
+	 * timeout, and then discard the new message.
+	 */
+	BLOCK;
+
+	/**
+	 * Parses a policy name from the settings.  Names are case-insensitive and
+	 * may use either dashes or underscores, e.g. "drop-oldest".
+	 *
+	 * @param value
+	 * @param defaultPolicy
+	 * @return the policy
+	 */
+	public static OverflowPolicy fromString(String value, OverflowPolicy defaultPolicy) {
+		if (StringUtils.isEmpty(value)) {
+			return defaultPolicy;
+		}
+		String name = value.trim().replace('-', '_').toUpperCase();
+		for (OverflowPolicy policy : values()) {
+			if (policy.name().equals(name)) {
+				return policy;
+			}
+		}
+		return defaultPolicy;
+	}
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.glip;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Matches repository names and ref names, which are both '/' separated
+ * paths, against include and exclude rules.
+ *
+ * A rule is a glob, where * matches within a path segment, ** matches any
+ * number of segments and ? matches one character, or a regular expression
+ * prefixed with "regex:".  All include rules and all exclude rules are each
+ * compiled into a single pattern so a name is matched once against each list
+ * however many rules there are.
+ *
+ * Each rule is wrapped in its own group, so inline flags such as (?i) only
+ * apply to their rule.  Backreferences and named groups are not supported
+ * because the groups are numbered across all of the rules, so rules which
+ * use them are ignored.
+ *
+ * @author James Moger
+ *
+ */
+class PathFilter {
+
+	static final String REGEX_PREFIX = "regex:";
+
+	/**
+	 * A filter which accepts every name.
+	 */
+	static final PathFilter ALL = new PathFilter(null, null);
+
+	private static final Logger log = LoggerFactory.getLogger(PathFilter.class);
+
+	private final Pattern include;
+
+	private final Pattern exclude;
+
+	private PathFilter(Pattern include, Pattern exclude) {
+		this.include = include;
+		this.exclude = exclude;
+	}
+
+	/**
+	 * Compiles the rules into a filter.  Invalid regular expressions are
+	 * logged and ignored.
+	 *
+	 * @param includes
+	 *            the names to accept, all names if empty
+	 * @param excludes
+	 *            the names to reject even if they are included
+	 * @return a filter
+	 */
+	static PathFilter compile(List<String> includes, List<String> excludes) {
+		Pattern include = combine(includes);
+		Pattern exclude = combine(excludes);
+		if (include == null && exclude == null) {
+			return ALL;
+		}
+		return new PathFilter(include, exclude);
+	}
+
+	/**
+	 * Returns true if the name is included and not excluded.
+	 *
+	 * @param name
+	 * @return true if the name is accepted
+	 */
+	boolean accepts(String name) {
+		if (include != null && !include.matcher(name).matches()) {
+			return false;
+		}
+		return exclude == null || !exclude.matcher(name).matches();
+	}
+
+	/**
+	 * Combines the rules into one alternation.  Invalid rules and rules with
+	 * backreferences or named groups are logged and ignored.
+	 *
+	 * @param rules
+	 * @return the pattern or null if there are no valid rules
+	 */
+	static Pattern combine(List<String> rules) {
+		if (rules == null || rules.isEmpty()) {
+			return null;
+		}
+		List<String> regexes = new ArrayList<String>(rules.size());
+		for (String rule : rules) {
+			String regex = "(?:" + toRegex(rule) + ")";
+			if (hasBackReference(regex)) {
+				log.warn("Ignoring Glip filter rule '{}': backreferences and named groups are not supported", rule);
+				continue;
+			}
+			try {
+				// validate each rule on its own, as it is combined, so one
+				// bad rule does not disable the others
+				Pattern.compile(regex);
+				regexes.add(regex);
+			} catch (PatternSyntaxException e) {
+				log.warn("Ignoring invalid Glip filter rule '{}': {}", rule, e.getDescription());
+			}
+		}
+		if (regexes.isEmpty()) {
+			return null;
+		}
+
+		StringBuilder sb = new StringBuilder();
+		for (String regex : regexes) {
+			if (sb.length() > 0) {
+				sb.append('|');
+			}
+			sb.append(regex);
+		}
+		return Pattern.compile(sb.toString());
+	}
+
+	/**
+	 * Returns true if the regular expression has a numbered or named
+	 * backreference or a named group, outside of quoted text.
+	 *
+	 * @param regex
+	 * @return true if the expression depends on its group numbers or names
+	 */
+	static boolean hasBackReference(String regex) {
+		boolean quoted = false;
+		for (int i = 0; i < regex.length(); i++) {
+			char c = regex.charAt(i);
+			if (quoted) {
+				if (regex.startsWith("\\E", i)) {
+					quoted = false;
+					i++;
+				}
+			} else if (c == '\\' && i + 1 < regex.length()) {
+				char next = regex.charAt(++i);
+				if (next == 'Q') {
+					quoted = true;
+				} else if ((next >= '1' && next <= '9') || next == 'k') {
+					return true;
+				}
+			} else if (regex.startsWith("(?<", i) && i + 3 < regex.length()
+					&& Character.isLetter(regex.charAt(i + 3))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Converts a rule into a regular expression.
+	 *
+	 * @param rule
+	 * @return a regular expression
+	 */
+	static String toRegex(String rule) {
+		if (rule.startsWith(REGEX_PREFIX)) {
+			return rule.substring(REGEX_PREFIX.length());
+		}
+
+		StringBuilder sb = new StringBuilder();
+		StringBuilder literal = new StringBuilder();
+		for (int i = 0; i < rule.length(); i++) {
+			char c = rule.charAt(i);
+			if (c != '*' && c != '?') {
+				literal.append(c);
+				continue;
+			}
+			if (literal.length() > 0) {
+				sb.append(Pattern.quote(literal.toString()));
+				literal.setLength(0);
+			}
+			if (c == '?') {
+				sb.append("[^/]");
+			} else if (i + 1 < rule.length() && rule.charAt(i + 1) == '*') {
+				// ** spans segments, **/ also matches no segment at all
+				i++;
+				if (i + 1 < rule.length() && rule.charAt(i + 1) == '/') {
+					i++;
+					sb.append("(?:.*/)?");
+				} else {
+					sb.append(".*");
+				}
+			} else {
+				sb.append("[^/]*");
+			}
+		}
+		if (literal.length() > 0) {
+			sb.append(Pattern.quote(literal.toString()));
+		}
+		return sb.toString();
+	}
+}
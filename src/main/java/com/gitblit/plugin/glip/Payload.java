@@ -1,5 +1,7 @@
 package com.gitblit.plugin.glip;
 
+import java.util.Collections;
+import java.util.List;
 
 public class Payload {
 
@@ -10,6 +12,20 @@ public class Payload {
 
 	private transient String conversation;
 
+	private transient String token;
+
+	private transient String repository;
+
+	private transient EventType eventType;
+
+	private transient String action;
+
+	private transient String author;
+
+	private transient String state;
+
+	private transient long created = System.nanoTime();
+
 	public Payload() {
 	}
 
@@ -38,6 +54,40 @@ public class Payload {
 		return this;
 	}
 
+	public Payload repository(String repository) {
+		setRepository(repository);
+		return this;
+	}
+
+	/**
+	 * Describes the event for summaries, e.g. event(EventType.BRANCH, "created").
+	 *
+	 * @param eventType
+	 * @param action
+	 * @return this payload
+	 */
+	public Payload event(EventType eventType, String action) {
+		setEventType(eventType);
+		setAction(action);
+		return this;
+	}
+
+	/**
+	 * Describes who caused the event and, for tickets, the resulting ticket
+	 * status for digests.
+	 *
+	 * @param author
+	 *            the username
+	 * @param state
+	 *            the ticket status or null
+	 * @return this payload
+	 */
+	public Payload author(String author, String state) {
+		setAuthor(author);
+		setState(state);
+		return this;
+	}
+
 	public String getIcon() {
 		return icon;
 	}
@@ -78,7 +128,153 @@ public class Payload {
 		this.conversation = room;
 	}
 
+	/**
+	 * Returns the token resolved by the route of the payload.
+	 *
+	 * @return the token or null if the payload was not routed
+	 */
+	String getToken() {
+		return token;
+	}
+
+	void setToken(String token) {
+		this.token = token;
+	}
+
+	public String getRepository() {
+		return repository;
+	}
+
+	public void setRepository(String repository) {
+		this.repository = repository;
+	}
+
+	public EventType getEventType() {
+		return eventType;
+	}
+
+	public void setEventType(EventType eventType) {
+		this.eventType = eventType;
+	}
+
+	public String getAuthor() {
+		return author;
+	}
+
+	public void setAuthor(String author) {
+		this.author = author;
+	}
+
+	public String getState() {
+		return state;
+	}
+
+	public void setState(String state) {
+		this.state = state;
+	}
+
+	public String getAction() {
+		return action;
+	}
+
+	public void setAction(String action) {
+		this.action = action;
+	}
+
+	/**
+	 * Returns the System.nanoTime() at which the message was created.
+	 *
+	 * @return the creation time
+	 */
+	long getCreated() {
+		return created;
+	}
+
+	void setCreated(long created) {
+		this.created = created;
+	}
+
+	/**
+	 * Renders the message, if the payload was created with deferred
+	 * rendering.  This is called by the dispatch worker before the payload is
+	 * journaled or posted.
+	 */
+	public void render() {
+	}
+
+	/**
+	 * Returns true if the message has been rendered.
+	 *
+	 * @return true if the message is rendered
+	 */
+	public boolean isRendered() {
+		return true;
+	}
+
+	/**
+	 * Returns the payloads which are journaled for this payload while it has
+	 * not been rendered.  A payload which merges other payloads when it is
+	 * rendered is journaled as those payloads.
+	 *
+	 * @return the parts of the payload
+	 */
+	List<Payload> getParts() {
+		return Collections.singletonList(this);
+	}
+
+	/**
+	 * Returns true if rendering the message failed.  A failed payload is
+	 * not posted.
+	 *
+	 * @return true if the message could not be rendered
+	 */
+	public boolean isFailed() {
+		return false;
+	}
+
+	/**
+	 * Returns a new payload which combines this payload with the next payload
+	 * for the same conversation.  The icon, activity and title of this payload
+	 * are retained and the bodies are concatenated.  Both payloads are
+	 * rendered first.
+	 *
+	 * @param next
+	 * @return a merged payload
+	 */
+	public Payload merge(Payload next) {
+		render();
+		next.render();
+		StringBuilder sb = new StringBuilder();
+		if (body != null) {
+			sb.append(body);
+		}
+		if (next.body != null) {
+			if (sb.length() > 0) {
+				sb.append("\n\n");
+			}
+			sb.append(next.body);
+		}
+		Payload merged = new Payload()
+			.icon(icon)
+			.activity(activity)
+			.title(title)
+			.body(sb.toString())
+			.conversation(conversation)
+			.repository(repository);
+		merged.setCreated(Math.min(created, next.created));
+		return merged;
+	}
+
+	/**
+	 * Returns the default webhook url for the token.
+	 *
+	 * @param token
+	 * @return the url
+	 * @deprecated the webhook url is configured by glip.hooksUrl, see
+	 *             {@link GlipConfig#getEndPoint(String)}
+	 */
+	@Deprecated
 	public String getEndPoint(String token) {
-		return String.format("https://hooks.glip.com/webhook/%s", token);
+		return GlipConfig.DEFAULT_HOOKS_URL + token;
 	}
 }
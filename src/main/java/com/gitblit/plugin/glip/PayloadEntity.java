@@ -0,0 +1,161 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.glip;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import org.apache.http.entity.AbstractHttpEntity;
+
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * An HTTP entity which writes a payload as UTF-8 JSON without first rendering
+ * the JSON to a String.
+ *
+ * The JSON is streamed into a byte buffer which is reused by the thread that
+ * creates the entity, so the post has a Content-Length and is not chunked.
+ * The entity must be sent before the thread creates another entity.
+ *
+ * The JSON is identical to the JSON produced by the default Gson serializer:
+ * the fields are written in declaration order, null fields are omitted and
+ * HTML characters are escaped.
+ *
+ * @author James Moger
+ *
+ */
+class PayloadEntity extends AbstractHttpEntity {
+
+	/**
+	 * Buffers which grow larger than this are not reused.
+	 */
+	private static final int MAX_REUSED_SIZE = 64 * 1024;
+
+	private static final ThreadLocal<Buffer> BUFFER = new ThreadLocal<Buffer>() {
+		@Override
+		protected Buffer initialValue() {
+			return new Buffer();
+		}
+	};
+
+	final Payload payload;
+
+	private final Buffer buffer;
+
+	PayloadEntity(Payload payload) throws IOException {
+		this.payload = payload;
+		setContentType("application/json");
+
+		Buffer buf = BUFFER.get();
+		buf.reset();
+		write(payload, buf);
+		if (buf.size() > MAX_REUSED_SIZE) {
+			// do not pin a large buffer to the thread
+			BUFFER.remove();
+		}
+		this.buffer = buf;
+	}
+
+	@Override
+	public boolean isRepeatable() {
+		return true;
+	}
+
+	@Override
+	public long getContentLength() {
+		return buffer.size();
+	}
+
+	@Override
+	public InputStream getContent() throws IOException {
+		return buffer.getContent();
+	}
+
+	@Override
+	public void writeTo(OutputStream outstream) throws IOException {
+		buffer.writeTo(outstream);
+		outstream.flush();
+	}
+
+	@Override
+	public boolean isStreaming() {
+		return false;
+	}
+
+	/**
+	 * Writes the payload as UTF-8 JSON to the stream.  The stream is flushed
+	 * but not closed.
+	 *
+	 * @param payload
+	 * @param os
+	 * @throws IOException
+	 */
+	static void write(Payload payload, OutputStream os) throws IOException {
+		Writer writer = new OutputStreamWriter(os, "UTF-8");
+		JsonWriter json = new JsonWriter(writer);
+		json.setHtmlSafe(true);
+		json.setSerializeNulls(false);
+		json.beginObject();
+		field(json, "icon", payload.getIcon());
+		field(json, "activity", payload.getActivity());
+		field(json, "title", payload.getTitle());
+		field(json, "body", payload.getBody());
+		json.endObject();
+		json.flush();
+	}
+
+	/**
+	 * Returns the JSON which is posted for the payload, e.g. for logging.
+	 *
+	 * @param payload
+	 * @return the JSON
+	 */
+	static String toJson(Payload payload) {
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		try {
+			write(payload, os);
+			return os.toString("UTF-8");
+		} catch (IOException e) {
+			// not thrown by an in-memory stream
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static void field(JsonWriter json, String name, String value) throws IOException {
+		if (value != null) {
+			json.name(name).value(value);
+		}
+	}
+
+	/**
+	 * A byte buffer which can be read without copying its contents.
+	 */
+	private static class Buffer extends ByteArrayOutputStream {
+
+		Buffer() {
+			super(1024);
+		}
+
+		InputStream getContent() {
+			return new ByteArrayInputStream(buf, 0, count);
+		}
+	}
+}
@@ -24,6 +24,8 @@ import com.gitblit.servlet.GitblitContext;
 
 public class Plugin extends GitblitPlugin {
 
+	public static final String SETTING_HOOKS_URL = "glip.hooksUrl";
+
 	public static final String SETTING_DEFAULT_TOKEN = "glip.defaultToken";
 
 	public static final String SETTING_CONVERSATION_TOKEN = "glip.%s.token";
@@ -46,6 +48,70 @@ public class Plugin extends GitblitPlugin {
 
 	public static final String SETTING_POST_TAGS = "glip.postTags";
 
+	public static final String SETTING_INCLUDE_REPOSITORIES = "glip.includeRepositories";
+
+	public static final String SETTING_EXCLUDE_REPOSITORIES = "glip.excludeRepositories";
+
+	public static final String SETTING_INCLUDE_REFS = "glip.includeRefs";
+
+	public static final String SETTING_EXCLUDE_REFS = "glip.excludeRefs";
+
+	public static final String SETTING_TRANSPORT = "glip.transport";
+
+	public static final String SETTING_IO_THREADS = "glip.ioThreads";
+
+	public static final String SETTING_CONFIG_REFRESH_INTERVAL = "glip.configRefreshInterval";
+
+	public static final String SETTING_MAX_CONNECTIONS = "glip.maxConnections";
+
+	public static final String SETTING_MAX_CONNECTIONS_PER_ROUTE = "glip.maxConnectionsPerRoute";
+
+	public static final String SETTING_CONNECTION_IDLE_TIMEOUT = "glip.connectionIdleTimeout";
+
+	public static final String SETTING_DISPATCH_MODE = "glip.dispatchMode";
+
+	public static final String SETTING_POOL_SIZE = "glip.poolSize";
+
+	public static final String SETTING_QUEUE_SIZE = "glip.queueSize";
+
+	public static final String SETTING_OVERFLOW_POLICY = "glip.overflowPolicy";
+
+	public static final String SETTING_OVERFLOW_BLOCK_TIMEOUT = "glip.overflowBlockTimeout";
+
+	public static final String SETTING_COALESCE_WINDOW = "glip.coalesceWindow";
+
+	public static final String SETTING_DIGEST_INTERVAL = "glip.digestInterval";
+
+	public static final String SETTING_CONVERSATION_DIGEST_INTERVAL = "glip.%s.digestInterval";
+
+	public static final String SETTING_MAX_ATTEMPTS = "glip.maxAttempts";
+
+	public static final String SETTING_RETRY_BASE_DELAY = "glip.retryBaseDelay";
+
+	public static final String SETTING_RETRY_MAX_DELAY = "glip.retryMaxDelay";
+
+	public static final String SETTING_RATE_LIMIT = "glip.rateLimit";
+
+	public static final String SETTING_RATE_LIMIT_BURST = "glip.rateLimitBurst";
+
+	public static final String SETTING_CIRCUIT_BREAKER_THRESHOLD = "glip.circuitBreakerThreshold";
+
+	public static final String SETTING_CIRCUIT_BREAKER_COOLDOWN = "glip.circuitBreakerCooldown";
+
+	public static final String SETTING_USE_OUTBOX = "glip.useOutbox";
+
+	public static final String SETTING_OUTBOX_FOLDER = "glip.outboxFolder";
+
+	public static final String SETTING_OUTBOX_SEGMENT_SIZE = "glip.outboxSegmentSize";
+
+	public static final String SETTING_OUTBOX_SYNC_INTERVAL = "glip.outboxSyncInterval";
+
+	public static final String SETTING_USER_CACHE_SIZE = "glip.userCacheSize";
+
+	public static final String SETTING_USER_CACHE_TTL = "glip.userCacheTtl";
+
+	public static final String SETTING_COMMIT_CACHE_SIZE = "glip.commitCacheSize";
+
 	public Plugin(PluginWrapper wrapper) {
 		super(wrapper);
 
@@ -55,11 +121,13 @@ public class Plugin extends GitblitPlugin {
 
 	@Override
 	public void start() {
+		Glip.instance().start();
 		log.debug("{} STARTED.", getWrapper().getPluginId());
 	}
 
 	@Override
 	public void stop() {
+		FakeWebhook.stopInstance();
 		Glip.instance().stop();
 		log.debug("{} STOPPED.", getWrapper().getPluginId());
 	}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.glip;
+
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Decides if and when a failed post should be attempted again using
+ * exponential backoff with jitter.  A Retry-After from Glip takes precedence
+ * over the computed backoff.
+ *
+ * @author James Moger
+ *
+ */
+class RetryPolicy {
+
+	final int maxAttempts;
+
+	final long baseDelay;
+
+	final long maxDelay;
+
+	final Random random = new Random();
+
+	RetryPolicy(int maxAttempts, long baseDelay, long maxDelay) {
+		this.maxAttempts = maxAttempts;
+		this.baseDelay = baseDelay;
+		this.maxDelay = maxDelay;
+	}
+
+	/**
+	 * Returns the delay before the next attempt.
+	 *
+	 * @param attempts
+	 *            the number of attempts made so far
+	 * @param error
+	 *            the error of the last attempt
+	 * @return the delay in milliseconds, or -1 if the post should not be
+	 *         attempted again
+	 */
+	long getDelay(int attempts, IOException error) {
+		if (attempts >= maxAttempts) {
+			return -1;
+		}
+
+		if (error instanceof GlipException) {
+			GlipException e = (GlipException) error;
+			if (e.isPermanent()) {
+				return -1;
+			}
+			if (e.getRetryAfter() > 0) {
+				return Math.min(e.getRetryAfter(), maxDelay);
+			}
+		}
+
+		// exponential backoff with equal jitter
+		long ceiling = Math.min(maxDelay, baseDelay << Math.min(attempts - 1, 30));
+		if (ceiling <= 0) {
+			ceiling = maxDelay;
+		}
+		long half = ceiling / 2;
+		synchronized (random) {
+			return half + (long) (random.nextDouble() * (ceiling - half));
+		}
+	}
+}
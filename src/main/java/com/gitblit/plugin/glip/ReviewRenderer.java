@@ -0,0 +1,151 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.glip;
+
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import com.gitblit.models.TicketModel;
+import com.gitblit.models.TicketModel.Change;
+import com.gitblit.models.TicketModel.Patchset;
+import com.gitblit.models.TicketModel.Review;
+import com.gitblit.models.TicketModel.Score;
+
+/**
+ * Renders the review table of a patchset.
+ *
+ * The reviewers of the patchset are resolved together through the user cache
+ * and the dates are formatted with a formatter which is created once per
+ * thread for the date format of the settings snapshot.
+ *
+ * @author James Moger
+ *
+ */
+class ReviewRenderer {
+
+	/**
+	 * A review of a patchset, copied from the ticket when the event occurs.
+	 */
+	static class Row {
+
+		final String author;
+
+		final long date;
+
+		final Score score;
+
+		Row(String author, long date, Score score) {
+			this.author = author;
+			this.date = date;
+			this.score = score;
+		}
+	}
+
+	final String dateTimeFormat;
+
+	private final ThreadLocal<DateFormat> dateFormat;
+
+	ReviewRenderer(final String dateTimeFormat) {
+		this.dateTimeFormat = dateTimeFormat;
+		this.dateFormat = new ThreadLocal<DateFormat>() {
+			@Override
+			protected DateFormat initialValue() {
+				return new SimpleDateFormat(dateTimeFormat);
+			}
+		};
+	}
+
+	/**
+	 * Copies the reviews of the reviewed patchset.
+	 *
+	 * @param ticket
+	 * @param review
+	 *            the review which triggered the message
+	 * @return the reviews of the patchset
+	 */
+	static List<Row> getRows(TicketModel ticket, Review review) {
+		Patchset patchset = ticket.getPatchset(review.patchset, review.rev);
+		List<Change> reviews = ticket.getReviews(patchset);
+		List<Row> rows = new ArrayList<Row>();
+		if (reviews != null) {
+			for (Change c : reviews) {
+				rows.add(new Row(c.author, c.date.getTime(), c.review.score));
+			}
+		}
+		return rows;
+	}
+
+	/**
+	 * Appends the table of the reviews of the reviewed patchset.
+	 *
+	 * @param sb
+	 * @param reviews
+	 *            the reviews of the patchset, see {@link #getRows(TicketModel, Review)}
+	 * @param users
+	 * @return the builder
+	 */
+	StringBuilder render(StringBuilder sb, List<Row> reviews, UserCache users) {
+		sb.append("|**Date**|**Reviewer**|**Score**|**Description**|\n");
+		if (reviews == null || reviews.isEmpty()) {
+			return sb;
+		}
+
+		List<String> reviewers = new ArrayList<String>(reviews.size());
+		for (Row c : reviews) {
+			reviewers.add(c.author);
+		}
+		Map<String, UserCache.User> names = users.getAll(reviewers);
+
+		DateFormat df = dateFormat.get();
+		for (Row c : reviews) {
+			Score score = c.score;
+			int value = score.getValue();
+			sb.append('|').append(df.format(new Date(c.date)));
+			sb.append('|').append(names.get(c.author).getDisplayName());
+			sb.append('|').append(getEmoji(score)).append(" (");
+			if (value > 0) {
+				sb.append('+');
+			}
+			sb.append(value).append(")|").append(score.toString()).append("|\n");
+		}
+		return sb;
+	}
+
+	/**
+	 * Returns the emoji for a review score.
+	 *
+	 * @param score
+	 * @return the emoji or an empty string
+	 */
+	static String getEmoji(Score score) {
+		switch (score) {
+		case approved:
+			return ":white_check_mark:";
+		case looks_good:
+			return ":thumbsup:";
+		case needs_improvement:
+			return ":thumbsdown:";
+		case vetoed:
+			return ":no_entry_sign:";
+		default:
+			return "";
+		}
+	}
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.glip;
+
+import com.gitblit.utils.StringUtils;
+
+/**
+ * The destination of the events of a repository, resolved before any
+ * message is prepared.  A hook does no further work for an event which can
+ * not be routed, e.g. because the repository is filtered or no token is
+ * configured for its conversation.
+ *
+ * @author James Moger
+ *
+ */
+public class Route {
+
+	private final GlipConfig config;
+
+	private final String conversation;
+
+	private final String token;
+
+	private final String reason;
+
+	Route(GlipConfig config, String conversation, String token) {
+		this(config, conversation, token, StringUtils.isEmpty(token) ? "no token" : null);
+	}
+
+	private Route(GlipConfig config, String conversation, String token, String reason) {
+		this.config = config;
+		this.conversation = conversation;
+		this.token = token;
+		this.reason = reason;
+	}
+
+	/**
+	 * Returns a route which does not deliver the events.
+	 *
+	 * @param config
+	 * @param conversation
+	 * @param reason
+	 * @return an unroutable route
+	 */
+	static Route unroutable(GlipConfig config, String conversation, String reason) {
+		return new Route(config, conversation, null, reason);
+	}
+
+	/**
+	 * Returns true if events are delivered to a conversation.
+	 *
+	 * @return true if the route has a destination
+	 */
+	public boolean isRoutable() {
+		return reason == null;
+	}
+
+	/**
+	 * Returns why the route does not deliver the events.
+	 *
+	 * @return the reason or null if the route is routable
+	 */
+	public String getReason() {
+		return reason;
+	}
+
+	/**
+	 * Returns the conversation.
+	 *
+	 * @return the conversation or null for the default conversation
+	 */
+	public String getConversation() {
+		return conversation;
+	}
+
+	/**
+	 * Returns the token of the conversation.
+	 *
+	 * @return the token or null if the route is not routable
+	 */
+	public String getToken() {
+		return token;
+	}
+
+	/**
+	 * Returns true if changes to the ref are delivered.
+	 *
+	 * @param refName
+	 *            the full name of the ref, e.g. refs/heads/master
+	 * @return true if the ref is accepted
+	 */
+	public boolean accepts(String refName) {
+		return isRoutable() && config.isPostRef(conversation, refName);
+	}
+
+	/**
+	 * Addresses the payload to the conversation and token of the route.
+	 *
+	 * @param payload
+	 * @return the payload
+	 */
+	public Payload apply(Payload payload) {
+		if (conversation != null) {
+			payload.setConversation(conversation);
+		}
+		payload.setToken(token);
+		return payload;
+	}
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.glip;
+
+/**
+ * A token bucket which limits the rate of posts to a single Glip webhook.
+ *
+ * @author James Moger
+ *
+ */
+class TokenBucket {
+
+	final double ratePerMilli;
+
+	final double capacity;
+
+	private double tokens;
+
+	private long lastRefill;
+
+	TokenBucket(double ratePerSecond, int burst) {
+		this.ratePerMilli = ratePerSecond / 1000d;
+		this.capacity = Math.max(1, burst);
+		this.tokens = capacity;
+		this.lastRefill = System.currentTimeMillis();
+	}
+
+	/**
+	 * Takes a token from the bucket if one is available.
+	 *
+	 * @return 0 if a token was taken, otherwise the number of milliseconds
+	 *         until the next token is available
+	 */
+	synchronized long tryAcquire() {
+		long now = System.currentTimeMillis();
+		if (now > lastRefill) {
+			tokens = Math.min(capacity, tokens + (now - lastRefill) * ratePerMilli);
+			lastRefill = now;
+		}
+		if (tokens >= 1) {
+			tokens -= 1;
+			return 0;
+		}
+		return Math.max(1, (long) Math.ceil((1 - tokens) / ratePerMilli));
+	}
+}
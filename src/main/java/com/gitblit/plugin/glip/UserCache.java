@@ -0,0 +1,327 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.glip;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import com.gitblit.manager.IUserManager;
+import com.gitblit.models.UserModel;
+import com.gitblit.servlet.GitblitContext;
+import com.gitblit.utils.ActivityUtils;
+import com.gitblit.utils.StringUtils;
+
+/**
+ * A bounded cache of the display names and gravatar urls of users.
+ *
+ * User lookups may be slow, e.g. when Gitblit authenticates against LDAP, and
+ * a ticket message looks up several users.  Users are kept for a limited time
+ * and the least recently used users are evicted when the cache is full.  An
+ * entry is replaced whenever a hook is given a current UserModel, e.g. the
+ * user who pushed, and the user who changed a ticket is looked up again for
+ * every change, so a changed display name or e-mail address is picked up
+ * immediately for active users.  Gitblit does not notify plugins of updated
+ * users, so other users are only refreshed when they expire.
+ *
+ * @author James Moger
+ *
+ */
+class UserCache {
+
+	/**
+	 * The size of the gravatar thumbnail.
+	 */
+	static final int ICON_SIZE = 48;
+
+	/**
+	 * The cached details of a user.
+	 */
+	static class User {
+
+		final String username;
+
+		final String displayName;
+
+		final String emailAddress;
+
+		final String iconUrl;
+
+		final long created = System.nanoTime();
+
+		User(String username, String displayName, String emailAddress, String iconUrl) {
+			this.username = username;
+			this.displayName = StringUtils.isEmpty(displayName) ? username : displayName;
+			this.emailAddress = emailAddress;
+			this.iconUrl = iconUrl;
+		}
+
+		String getUsername() {
+			return username;
+		}
+
+		/**
+		 * Returns the display name or the username if the user does not exist
+		 * or has no display name.
+		 */
+		String getDisplayName() {
+			return displayName;
+		}
+
+		String getEmailAddress() {
+			return emailAddress;
+		}
+
+		/**
+		 * Returns the gravatar url of the user or null if the user has no
+		 * e-mail address.
+		 */
+		String getIconUrl() {
+			return iconUrl;
+		}
+
+		boolean isSame(String displayName, String emailAddress) {
+			return eq(this.displayName, displayName) && eq(this.emailAddress, emailAddress);
+		}
+
+		private static boolean eq(String a, String b) {
+			return a == null ? b == null : a.equals(b);
+		}
+	}
+
+	final int maxSize;
+
+	final long ttl;
+
+	private final Map<String, User> users;
+
+	private final Map<String, String> icons;
+
+	/**
+	 * @param maxSize
+	 *            the maximum number of users and of gravatar urls
+	 * @param ttl
+	 *            the time in seconds a user is cached, 0 disables caching
+	 */
+	UserCache(int maxSize, long ttl) {
+		this.maxSize = ttl > 0 ? Math.max(0, maxSize) : 0;
+		this.ttl = TimeUnit.SECONDS.toNanos(Math.max(0, ttl));
+		this.users = new Lru<String, User>(this.maxSize);
+		this.icons = new Lru<String, String>(this.maxSize);
+	}
+
+	/**
+	 * Returns the user with the username, looking it up if it is not cached
+	 * or has expired.
+	 *
+	 * @param username
+	 * @return the user, never null
+	 */
+	User get(String username) {
+		String key = username == null ? "" : username;
+		synchronized (users) {
+			User user = users.get(key);
+			if (user != null && System.nanoTime() - user.created < ttl) {
+				return user;
+			}
+		}
+
+		IUserManager userManager = GitblitContext.getManager(IUserManager.class);
+		return load(userManager, username);
+	}
+
+	/**
+	 * Returns the user with the username, always looking it up so that a
+	 * changed display name or e-mail address replaces the cached user.  This
+	 * is meant for the user who caused an event, whose details are expected
+	 * to be current.
+	 *
+	 * @param username
+	 * @return the user, never null
+	 */
+	User refresh(String username) {
+		if (StringUtils.isEmpty(username)) {
+			return get(username);
+		}
+		IUserManager userManager = GitblitContext.getManager(IUserManager.class);
+		UserModel model = userManager.getUserModel(username);
+		if (model == null) {
+			// cache unknown users too
+			User user = new User(username, username, null, null);
+			put(username, user);
+			return user;
+		}
+		return update(model);
+	}
+
+	/**
+	 * Returns the users with the usernames.  The cache is checked for all of
+	 * the users at once and each missing or expired user is looked up once.
+	 *
+	 * @param usernames
+	 * @return the users by username
+	 */
+	Map<String, User> getAll(Collection<String> usernames) {
+		Map<String, User> found = new HashMap<String, User>();
+		Set<String> missing = new LinkedHashSet<String>();
+		long now = System.nanoTime();
+		synchronized (users) {
+			for (String username : usernames) {
+				if (found.containsKey(username)) {
+					continue;
+				}
+				User user = users.get(username == null ? "" : username);
+				if (user != null && now - user.created < ttl) {
+					found.put(username, user);
+				} else {
+					missing.add(username);
+				}
+			}
+		}
+
+		if (!missing.isEmpty()) {
+			IUserManager userManager = GitblitContext.getManager(IUserManager.class);
+			for (String username : missing) {
+				found.put(username, load(userManager, username));
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Returns the cached user for the current UserModel, replacing the cached
+	 * user if the display name or e-mail address has changed.
+	 *
+	 * @param model
+	 * @return the user
+	 */
+	User update(UserModel model) {
+		return update(model.username, model.getDisplayName(), model.emailAddress);
+	}
+
+	/**
+	 * Returns the cached user for the current details of a user, replacing
+	 * the cached user if the display name or e-mail address has changed.
+	 *
+	 * @param username
+	 * @param displayName
+	 * @param emailAddress
+	 * @return the user
+	 */
+	User update(String username, String displayName, String emailAddress) {
+		String key = username == null ? "" : username;
+		synchronized (users) {
+			User user = users.get(key);
+			if (user != null && user.isSame(displayName, emailAddress) && System.nanoTime() - user.created < ttl) {
+				return user;
+			}
+		}
+		User user = new User(username, displayName, emailAddress, getIconUrl(emailAddress));
+		put(key, user);
+		return user;
+	}
+
+	/**
+	 * Removes all users and gravatar urls from the cache.
+	 */
+	void clear() {
+		synchronized (users) {
+			users.clear();
+		}
+		synchronized (icons) {
+			icons.clear();
+		}
+	}
+
+	/**
+	 * Returns the gravatar thumbnail url for the e-mail address.
+	 *
+	 * @param emailAddress
+	 * @return the url or null if the address is empty
+	 */
+	String getIconUrl(String emailAddress) {
+		if (StringUtils.isEmpty(emailAddress)) {
+			return null;
+		}
+		String url;
+		synchronized (icons) {
+			url = icons.get(emailAddress);
+		}
+		if (url == null) {
+			// an MD5 of the address
+			url = ActivityUtils.getGravatarThumbnailUrl(emailAddress, ICON_SIZE);
+			if (maxSize > 0) {
+				synchronized (icons) {
+					icons.put(emailAddress, url);
+				}
+			}
+		}
+		return url;
+	}
+
+	private User load(IUserManager userManager, String username) {
+		UserModel model = null;
+		if (!StringUtils.isEmpty(username)) {
+			model = userManager.getUserModel(username);
+		}
+		User user;
+		if (model == null) {
+			// cache unknown users too
+			user = new User(username, username, null, null);
+		} else {
+			user = newUser(model);
+		}
+		put(username == null ? "" : username, user);
+		return user;
+	}
+
+	private User newUser(UserModel model) {
+		return new User(model.username, model.getDisplayName(), model.emailAddress, getIconUrl(model.emailAddress));
+	}
+
+	private void put(String key, User user) {
+		if (maxSize == 0) {
+			return;
+		}
+		synchronized (users) {
+			users.put(key, user);
+		}
+	}
+
+	/**
+	 * A map which evicts the least recently used entry when it is full.
+	 */
+	private static class Lru<K, V> extends LinkedHashMap<K, V> {
+
+		private static final long serialVersionUID = 1L;
+
+		final int maxSize;
+
+		Lru(int maxSize) {
+			super(16, 0.75f, true);
+			this.maxSize = maxSize;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+			return size() > maxSize;
+		}
+	}
+}
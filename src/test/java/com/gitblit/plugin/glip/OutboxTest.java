@@ -0,0 +1,213 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.glip;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the journal of the outbox and its recovery after a restart.
+ *
+ * @author James Moger
+ *
+ */
+public class OutboxTest {
+
+	private File folder;
+
+	private Outbox outbox;
+
+	@Before
+	public void setUp() throws IOException {
+		folder = Files.createTempDirectory("outbox").toFile();
+	}
+
+	@After
+	public void tearDown() {
+		if (outbox != null) {
+			outbox.close();
+		}
+		File [] files = folder.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		folder.delete();
+	}
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		outbox = open(1024 * 1024);
+		outbox.append(message("first").conversation("dev"));
+		outbox.append(message("second"));
+		outbox.append(message("third"));
+
+		List<Outbox.Entry> recovered = reopen(1024 * 1024);
+		assertEquals(3, recovered.size());
+		assertEquals("first", recovered.get(0).payload.getBody());
+		assertEquals("dev", recovered.get(0).payload.getConversation());
+		assertEquals("second", recovered.get(1).payload.getBody());
+		assertEquals("third", recovered.get(2).payload.getBody());
+		assertEquals(3, outbox.getPendingCount());
+	}
+
+	@Test
+	public void testAckedEntryIsNotReplayed() throws IOException {
+		outbox = open(1024 * 1024);
+		long first = outbox.append(message("first"));
+		outbox.append(message("second"));
+		outbox.ack(first);
+		assertEquals(1, outbox.getPendingCount());
+
+		List<Outbox.Entry> recovered = reopen(1024 * 1024);
+		assertEquals(1, recovered.size());
+		assertEquals("second", recovered.get(0).payload.getBody());
+
+		// the recovered message is acknowledged with its new id
+		outbox.ack(recovered.get(0).id);
+		assertEquals(0, reopen(1024 * 1024).size());
+	}
+
+	@Test
+	public void testTruncatedTail() throws IOException {
+		outbox = open(1024 * 1024);
+		outbox.append(message("first"));
+		outbox.append(message("second"));
+		outbox.close();
+
+		// a torn write of the last record
+		File segment = getSegment();
+		RandomAccessFile file = new RandomAccessFile(segment, "rw");
+		try {
+			file.setLength(file.length() - 3);
+		} finally {
+			file.close();
+		}
+
+		List<Outbox.Entry> recovered = reopen(1024 * 1024);
+		assertEquals(1, recovered.size());
+		assertEquals("first", recovered.get(0).payload.getBody());
+	}
+
+	@Test
+	public void testBadChecksum() throws IOException {
+		outbox = open(1024 * 1024);
+		outbox.append(message("first"));
+		outbox.append(message("second"));
+		outbox.append(message("third"));
+		outbox.close();
+
+		// corrupt the body of the last record
+		File segment = getSegment();
+		RandomAccessFile file = new RandomAccessFile(segment, "rw");
+		try {
+			file.seek(file.length() - 1);
+			int b = file.read();
+			file.seek(file.length() - 1);
+			file.write(b ^ 0xff);
+		} finally {
+			file.close();
+		}
+
+		List<Outbox.Entry> recovered = reopen(1024 * 1024);
+		assertEquals(2, recovered.size());
+		assertEquals("first", recovered.get(0).payload.getBody());
+		assertEquals("second", recovered.get(1).payload.getBody());
+	}
+
+	@Test
+	public void testDeferredPayloadIsRecoveredAsEvent() throws IOException {
+		outbox = open(1024 * 1024);
+		Event event = new Event("pushed");
+		event.conversation("dev");
+		outbox.append(event);
+
+		List<Outbox.Entry> recovered = reopen(1024 * 1024);
+		assertEquals(1, recovered.size());
+		Payload payload = recovered.get(0).payload;
+		assertTrue(payload instanceof Event);
+		assertEquals("dev", payload.getConversation());
+		payload.render();
+		assertEquals("rendered pushed", payload.getBody());
+	}
+
+	@Test
+	public void testPendingEntryDoesNotPinSegments() throws IOException {
+		outbox = open(1024);
+		long pinned = outbox.append(message("pinned"));
+		for (int i = 0; i < 500; i++) {
+			outbox.ack(outbox.append(message("message " + i)));
+		}
+		assertEquals(1, outbox.getPendingCount());
+		assertTrue(folder.listFiles().length <= 2);
+
+		List<Outbox.Entry> recovered = reopen(1024);
+		assertEquals(1, recovered.size());
+		assertEquals("pinned", recovered.get(0).payload.getBody());
+		assertTrue(recovered.get(0).id > pinned);
+	}
+
+	private Outbox open(long segmentSize) throws IOException {
+		Outbox outbox = new Outbox(folder, segmentSize, GlipConfig.GSON);
+		outbox.open();
+		return outbox;
+	}
+
+	private List<Outbox.Entry> reopen(long segmentSize) throws IOException {
+		outbox.close();
+		outbox = new Outbox(folder, segmentSize, GlipConfig.GSON);
+		return outbox.open();
+	}
+
+	private File getSegment() {
+		File [] files = folder.listFiles();
+		assertEquals(1, files.length);
+		return files[0];
+	}
+
+	private static Payload message(String body) {
+		return new Payload().activity("test").body(body);
+	}
+
+	/**
+	 * An event which is rendered after it has been journaled.
+	 */
+	static class Event extends DeferredPayload {
+
+		final String text;
+
+		Event(String text) {
+			this.text = text;
+		}
+
+		@Override
+		protected void renderPayload() {
+			activity("test");
+			body("rendered " + text);
+		}
+	}
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.glip;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests the glob and regular expression rules of the path filter.
+ *
+ * @author James Moger
+ *
+ */
+public class PathFilterTest {
+
+	@Test
+	public void testNoRules() {
+		assertSame(PathFilter.ALL, PathFilter.compile(null, Collections.<String>emptyList()));
+		assertTrue(PathFilter.ALL.accepts("refs/heads/master"));
+	}
+
+	@Test
+	public void testStar() {
+		PathFilter filter = include("refs/tags/build-*");
+		assertTrue(filter.accepts("refs/tags/build-1"));
+		assertTrue(filter.accepts("refs/tags/build-"));
+		assertFalse(filter.accepts("refs/tags/build-1/2"));
+		assertFalse(filter.accepts("refs/tags/v1"));
+	}
+
+	@Test
+	public void testDoubleStar() {
+		PathFilter filter = include("refs/heads/ci/**");
+		assertTrue(filter.accepts("refs/heads/ci/a"));
+		assertTrue(filter.accepts("refs/heads/ci/a/b"));
+		assertFalse(filter.accepts("refs/heads/master"));
+
+		filter = include("**/plugin.git");
+		assertTrue(filter.accepts("plugin.git"));
+		assertTrue(filter.accepts("team/plugins/plugin.git"));
+		assertFalse(filter.accepts("team/other.git"));
+	}
+
+	@Test
+	public void testQuestionMark() {
+		PathFilter filter = include("refs/heads/v?");
+		assertTrue(filter.accepts("refs/heads/v1"));
+		assertFalse(filter.accepts("refs/heads/v10"));
+		assertFalse(filter.accepts("refs/heads/v/"));
+	}
+
+	@Test
+	public void testGlobIsLiteral() {
+		PathFilter filter = include("team/a+b.git");
+		assertTrue(filter.accepts("team/a+b.git"));
+		assertFalse(filter.accepts("team/aab.git"));
+	}
+
+	@Test
+	public void testRegex() {
+		PathFilter filter = include("regex:refs/heads/tmp-[0-9]+", "refs/tags/*");
+		assertTrue(filter.accepts("refs/heads/tmp-42"));
+		assertTrue(filter.accepts("refs/tags/v1"));
+		assertFalse(filter.accepts("refs/heads/tmp-x"));
+	}
+
+	@Test
+	public void testExclude() {
+		PathFilter filter = PathFilter.compile(Arrays.asList("refs/heads/**"),
+				Arrays.asList("refs/heads/ci/**", "regex:.*/wip-.*"));
+		assertTrue(filter.accepts("refs/heads/master"));
+		assertFalse(filter.accepts("refs/heads/ci/build"));
+		assertFalse(filter.accepts("refs/heads/feature/wip-x"));
+		assertFalse(filter.accepts("refs/tags/v1"));
+	}
+
+	@Test
+	public void testInvalidRuleIsIgnored() {
+		PathFilter filter = include("regex:refs/heads/[", "refs/tags/*");
+		assertTrue(filter.accepts("refs/tags/v1"));
+		assertFalse(filter.accepts("refs/heads/["));
+	}
+
+	@Test
+	public void testInlineFlagsApplyToTheirRule() {
+		PathFilter filter = include("regex:(?i)refs/heads/master", "refs/tags/*");
+		assertTrue(filter.accepts("REFS/HEADS/MASTER"));
+		assertTrue(filter.accepts("refs/tags/v1"));
+		assertFalse(filter.accepts("REFS/TAGS/V1"));
+	}
+
+	@Test
+	public void testBackReferenceIsIgnored() {
+		PathFilter filter = include("refs/tags/*", "regex:refs/heads/(a)\\1");
+		assertTrue(filter.accepts("refs/tags/v1"));
+		assertFalse(filter.accepts("refs/heads/aa"));
+
+		assertTrue(PathFilter.hasBackReference("(?<name>a)\\k<name>"));
+		assertFalse(PathFilter.hasBackReference("(?<=refs/heads/)x"));
+		assertFalse(PathFilter.hasBackReference("\\Q\\1\\E"));
+	}
+
+	private static PathFilter include(String... rules) {
+		List<String> includes = Arrays.asList(rules);
+		return PathFilter.compile(includes, null);
+	}
+}